@@ -1,39 +1,102 @@
 package com.chatterbug.app;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.text.TextUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+import android.view.Choreographer;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.recyclerview.widget.LinearLayoutManager;
 
 import com.chatterbug.app.adapters.MessageAdapter;
 import com.chatterbug.app.databinding.ActivityChatBinding;
 import com.chatterbug.app.models.Message;
 import com.chatterbug.app.services.BluetoothChatService;
+import com.chatterbug.app.services.ChatEngineService;
+import com.chatterbug.app.services.MessageCodec;
+import com.chatterbug.app.services.PeerHistory;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChatActivity extends AppCompatActivity implements ChatEngineService.Listener {
+    private static final String TAG = "ChatActivity";
+    private static final int MAX_SEARCH_HITS = 500;
+    private static final int REQUEST_PICK_FILE = 1;
 
-public class ChatActivity extends AppCompatActivity implements BluetoothChatService.BluetoothChatListener {
     private ActivityChatBinding binding;
-    private BluetoothAdapter bluetoothAdapter;
+    // The engine lives in ChatEngineService; these are set once it is bound
+    private ChatEngineService engine;
     private BluetoothChatService chatService;
+    private PeerHistory history;
     private MessageAdapter messageAdapter;
-    private List<Message> messageList;
+    // History size when the adapter was created; later messages come through the inbox
+    private long historyBase;
+
+    // Incoming messages are collected here and added to the list once per display frame
+    private final ConcurrentLinkedQueue<ReceivedMessage> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // Keyed by history index, which is also the adapter position
+    private final SparseArray<Message> drainBatch = new SparseArray<>();
+    private final Choreographer.FrameCallback drainCallback = frameTimeNanos -> drainInbox();
+    private final Runnable scheduleDrain = () -> Choreographer.getInstance().postFrameCallback(drainCallback);
+    // Index catch-up and queries run here; a result is only shown if no newer query has started
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private int searchGeneration;
+    private int[] searchHits = new int[0];
+    private int searchCursor;
+    // File offers the user is being asked about, by transfer id; main thread only
+    private final LongSparseArray<AlertDialog> openOffers = new LongSparseArray<>();
     private String deviceName;
     private String deviceAddress;
     private boolean isPaired;
     private Handler mainHandler;
 
+    private final ServiceConnection engineConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            engine = ((ChatEngineService.LocalBinder) service).getService();
+            chatService = engine.getChatService();
+            // Listen before sizing the adapter so no message falls between the two; messages
+            // arriving while the history opens wait in the inbox
+            engine.addListener(ChatActivity.this);
+            initializeChatService();
+            engine.openHistory(deviceAddress, opened -> {
+                if (isDestroyed()) return;
+                history = opened;
+                setupRecyclerView();
+                prepareSearch();
+                drainInbox();
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            engine = null;
+            chatService = null;
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -44,10 +107,8 @@ public class ChatActivity extends AppCompatActivity implements BluetoothChatServ
         
         getIntentExtras();
         setupToolbar();
-        initializeBluetooth();
-        setupRecyclerView();
         setupClickListeners();
-        initializeChatService();
+        bindEngine();
     }
 
     private void getIntentExtras() {
@@ -66,14 +127,29 @@ public class ChatActivity extends AppCompatActivity implements BluetoothChatServ
         }
     }
 
-    private void initializeBluetooth() {
-        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
-        bluetoothAdapter = bluetoothManager.getAdapter();
+    /**
+     * Started as well as bound, so the connection outlives this activity.
+     */
+    private void bindEngine() {
+        Intent intent = new Intent(this, ChatEngineService.class);
+        startService(intent);
+        bindService(intent, engineConnection, BIND_AUTO_CREATE);
     }
 
     private void setupRecyclerView() {
-        messageList = new ArrayList<>();
-        messageAdapter = new MessageAdapter(messageList);
+        final PeerHistory source = history;
+        messageAdapter = new MessageAdapter(new MessageAdapter.PageSource() {
+            @Override
+            public int size() {
+                return source.size();
+            }
+
+            @Override
+            public List<Message> load(int from, int count) throws IOException {
+                return source.read(from, count);
+            }
+        });
+        historyBase = messageAdapter.getItemCount();
         
         LinearLayoutManager layoutManager = new LinearLayoutManager(this);
         layoutManager.setStackFromEnd(true);
@@ -91,25 +167,47 @@ public class ChatActivity extends AppCompatActivity implements BluetoothChatServ
     }
 
     private void initializeChatService() {
-        chatService = new BluetoothChatService(this, this);
+        binding.layoutConnectionStatus.setOnClickListener(v -> engine.reconnectNow(deviceAddress));
         
-        // Connect to the device
-        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-        chatService.connect(device);
+        // Connect to the device; a link kept by the service from an earlier screen, or one
+        // started ahead of time at launch, is reused
+        engine.openChat(deviceAddress);
+        showConnectionState(chatService.getState(deviceAddress));
     }
 
     private void sendMessage() {
         String messageText = binding.editTextMessage.getText().toString().trim();
         if (!TextUtils.isEmpty(messageText)) {
-            if (chatService != null && chatService.getState() == BluetoothChatService.STATE_CONNECTED) {
-                chatService.write(messageText.getBytes());
+            if (chatService != null && chatService.getState(deviceAddress) == BluetoothChatService.STATE_CONNECTED) {
+                Message message = new Message(messageText, true, System.currentTimeMillis());
+                message.setId(engine.nextMessageId());
+                message.setStatus(Message.STATUS_SENDING);
+                // The message's history index once it is saved; both are set on the main thread
+                long[] index = {-1};
+                if (!chatService.write(deviceAddress, MessageCodec.encode(message),
+                        status -> mainHandler.post(() -> updateStatus(message, index[0], status)))) {
+                    Toast.makeText(this, "Too many messages waiting, try again", Toast.LENGTH_SHORT).show();
+                    return;
+                }
                 binding.editTextMessage.setText("");
                 
-                // Add message to list
-                Message message = new Message(messageText, true, System.currentTimeMillis());
-                messageList.add(message);
-                messageAdapter.notifyItemInserted(messageList.size() - 1);
-                binding.recyclerViewMessages.scrollToPosition(messageList.size() - 1);
+                // Saved on the engine's disk thread, then shown at its place in the history,
+                // which messages received meanwhile but not drained yet may come before
+                engine.appendSent(deviceAddress, message, saved -> {
+                    if (saved < 0) {
+                        Toast.makeText(this, "Could not save message", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    index[0] = saved;
+                    // A status that came back before the message was saved
+                    if (message.getStatus() != Message.STATUS_SENDING) {
+                        engine.setMessageStatus(deviceAddress, saved, message.getStatus());
+                    }
+                    // Not shown yet if the history is still opening; the adapter will include it
+                    if (isDestroyed() || messageAdapter == null) return;
+                    messageAdapter.putMessage(saved.intValue(), message);
+                    binding.recyclerViewMessages.scrollToPosition(messageAdapter.getItemCount() - 1);
+                });
             } else {
                 Toast.makeText(this, "Not connected to device", Toast.LENGTH_SHORT).show();
             }
@@ -117,53 +215,91 @@ public class ChatActivity extends AppCompatActivity implements BluetoothChatServ
     }
 
     @Override
-    public void onConnectionStateChanged(int state) {
+    public void onConnectionStateChanged(String address, int state) {
+        if (!address.equals(deviceAddress)) return;
+
         mainHandler.post(() -> {
-            switch (state) {
-                case BluetoothChatService.STATE_CONNECTING:
-                    if (getSupportActionBar() != null) {
-                        getSupportActionBar().setSubtitle("Connecting...");
-                    }
-                    binding.layoutConnectionStatus.setVisibility(View.VISIBLE);
-                    binding.textConnectionStatus.setText("Connecting to " + deviceName + "...");
-                    break;
-                    
-                case BluetoothChatService.STATE_CONNECTED:
-                    if (getSupportActionBar() != null) {
-                        getSupportActionBar().setSubtitle("Connected");
-                    }
-                    binding.layoutConnectionStatus.setVisibility(View.GONE);
-                    binding.layoutMessageInput.setVisibility(View.VISIBLE);
-                    Toast.makeText(this, "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
-                    break;
-                    
-                case BluetoothChatService.STATE_LISTEN:
-                case BluetoothChatService.STATE_NONE:
-                    if (getSupportActionBar() != null) {
-                        getSupportActionBar().setSubtitle("Not connected");
-                    }
-                    binding.layoutConnectionStatus.setVisibility(View.VISIBLE);
-                    binding.textConnectionStatus.setText("Connection lost. Tap to retry.");
-                    binding.layoutMessageInput.setVisibility(View.GONE);
-                    break;
+            showConnectionState(state);
+            if (state == BluetoothChatService.STATE_CONNECTED) {
+                Toast.makeText(this, "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
             }
         });
     }
 
+    private void showConnectionState(int state) {
+        switch (state) {
+            case BluetoothChatService.STATE_CONNECTING:
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle("Connecting...");
+                }
+                binding.layoutConnectionStatus.setVisibility(View.VISIBLE);
+                binding.textConnectionStatus.setText("Connecting to " + deviceName + "...");
+                break;
+
+            case BluetoothChatService.STATE_CONNECTED:
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle("Connected");
+                }
+                binding.layoutConnectionStatus.setVisibility(View.GONE);
+                binding.layoutMessageInput.setVisibility(View.VISIBLE);
+                break;
+
+            case BluetoothChatService.STATE_LISTEN:
+            case BluetoothChatService.STATE_NONE:
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle("Not connected");
+                }
+                binding.layoutConnectionStatus.setVisibility(View.VISIBLE);
+                binding.textConnectionStatus.setText("Connection lost. Reconnecting, tap to retry now.");
+                binding.layoutMessageInput.setVisibility(View.GONE);
+                break;
+        }
+    }
+
     @Override
-    public void onMessageReceived(byte[] buffer, int bytes) {
-        String receivedMessage = new String(buffer, 0, bytes);
-        
-        mainHandler.post(() -> {
-            Message message = new Message(receivedMessage, false, System.currentTimeMillis());
-            messageList.add(message);
-            messageAdapter.notifyItemInserted(messageList.size() - 1);
-            binding.recyclerViewMessages.scrollToPosition(messageList.size() - 1);
-        });
+    public void onMessageReceived(String address, Message message, long index) {
+        if (!address.equals(deviceAddress)) return;
+
+        inbox.offer(new ReceivedMessage(message, index));
+        if (drainScheduled.compareAndSet(false, true)) {
+            mainHandler.post(scheduleDrain);
+        }
+    }
+
+    private void drainInbox() {
+        // Clear the flag first so a message arriving during the drain schedules the next frame
+        drainScheduled.set(false);
+        // Drained once the history is open
+        if (messageAdapter == null) return;
+        ReceivedMessage received;
+        while ((received = inbox.poll()) != null) {
+            // Saved before the adapter was created, so it is already in the list; a message
+            // that could not be saved has no place in the history to be shown at
+            if (received.index < historyBase) continue;
+            drainBatch.put((int) received.index, received.message);
+        }
+        if (drainBatch.size() == 0) return;
+
+        messageAdapter.putMessages(drainBatch);
+        drainBatch.clear();
+        binding.recyclerViewMessages.scrollToPosition(messageAdapter.getItemCount() - 1);
+    }
+
+    private void updateStatus(Message message, long index, int status) {
+        message.setStatus(status);
+        // Not saved yet, or could not be; saving it picks the status up
+        if (index < 0 || engine == null) return;
+        // The history belongs to the service, so the status is kept even if this screen is gone
+        engine.setMessageStatus(deviceAddress, index, status);
+        if (!isDestroyed() && messageAdapter != null) {
+            messageAdapter.notifyItemChanged((int) index);
+        }
     }
 
     @Override
-    public void onConnectionFailed() {
+    public void onConnectionFailed(String address) {
+        if (!address.equals(deviceAddress)) return;
+
         mainHandler.post(() -> {
             Toast.makeText(this, "Failed to connect to " + deviceName, Toast.LENGTH_LONG).show();
             if (getSupportActionBar() != null) {
@@ -176,32 +312,212 @@ public class ChatActivity extends AppCompatActivity implements BluetoothChatServ
     }
 
     @Override
-    public void onConnectionLost() {
+    public void onConnectionLost(String address) {
+        if (!address.equals(deviceAddress)) return;
+
         mainHandler.post(() -> {
             Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
             if (getSupportActionBar() != null) {
                 getSupportActionBar().setSubtitle("Connection lost");
             }
             binding.layoutConnectionStatus.setVisibility(View.VISIBLE);
-            binding.textConnectionStatus.setText("Connection lost. Tap to retry.");
+            binding.textConnectionStatus.setText("Connection lost. Reconnecting, tap to retry now.");
             binding.layoutMessageInput.setVisibility(View.GONE);
         });
     }
 
+    @Override
+    public void onLinkQualityChanged(String address, double smoothedRttMillis, double rttVariationMillis) {
+        if (!address.equals(deviceAddress)) return;
+
+        mainHandler.post(() -> {
+            if (getSupportActionBar() != null && chatService.getState(deviceAddress) == BluetoothChatService.STATE_CONNECTED) {
+                getSupportActionBar().setSubtitle("Connected \u00b7 " + Math.round(smoothedRttMillis) + " ms");
+            }
+        });
+    }
+
+    @Override
+    public void onTransferProgress(String address, long transferId, long bytes, long total, boolean incoming) {
+        // Progress is not shown yet
+    }
+
+    @Override
+    public void onTransferComplete(String address, long transferId, File file, boolean incoming) {
+        if (!address.equals(deviceAddress)) return;
+
+        mainHandler.post(() -> Toast.makeText(this,
+                (incoming ? "Received " : "Sent ") + file.getName(), Toast.LENGTH_SHORT).show());
+    }
+
+    @Override
+    public void onTransferFailed(String address, long transferId, boolean incoming) {
+        if (!address.equals(deviceAddress)) return;
+
+        mainHandler.post(() -> Toast.makeText(this,
+                incoming ? "File transfer failed" : "Could not send file", Toast.LENGTH_SHORT).show());
+    }
+
+    @Override
+    public boolean onFileOffered(String address, long transferId, String name, long size) {
+        if (!address.equals(deviceAddress)) return false;
+
+        mainHandler.post(() -> askToReceive(transferId, name, size));
+        return true;
+    }
+
+    private void askToReceive(long transferId, String name, long size) {
+        if (isFinishing() || isDestroyed()) {
+            engine.answerFileOffer(deviceAddress, transferId, false);
+            return;
+        }
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle("Receive file?")
+                .setMessage(deviceName + " wants to send you " + name
+                        + " (" + Formatter.formatShortFileSize(this, size) + ")")
+                .setPositiveButton("Accept", (d, which) -> answerOffer(transferId, true))
+                .setNegativeButton("Decline", (d, which) -> answerOffer(transferId, false))
+                .setOnCancelListener(d -> answerOffer(transferId, false))
+                .create();
+        openOffers.put(transferId, dialog);
+        dialog.show();
+    }
+
+    private void answerOffer(long transferId, boolean accept) {
+        int i = openOffers.indexOfKey(transferId);
+        if (i < 0) return;
+        openOffers.removeAt(i);
+        engine.answerFileOffer(deviceAddress, transferId, accept);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_chat, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextChange(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // Each submit steps back to the next older hit
+                if (searchHits.length > 0) {
+                    searchCursor = (searchCursor + 1) % searchHits.length;
+                    binding.recyclerViewMessages.scrollToPosition(searchHits[searchCursor]);
+                }
+                return true;
+            }
+        });
+        return true;
+    }
+
+    private void prepareSearch() {
+        final PeerHistory source = history;
+        searchExecutor.execute(() -> {
+            try {
+                source.prepareSearch();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not index history", e);
+            }
+        });
+    }
+
+    /**
+     * Looks the query up in the history's search index in the background and jumps to the
+     * newest hit. History positions are adapter positions, since every row is placed at its
+     * history index.
+     */
+    private void search(String query) {
+        final int generation = ++searchGeneration;
+        final PeerHistory source = history;
+        if (source == null || query.trim().isEmpty()) {
+            searchHits = new int[0];
+            return;
+        }
+        searchExecutor.execute(() -> {
+            int[] hits;
+            try {
+                hits = source.search(query, MAX_SEARCH_HITS);
+            } catch (IOException e) {
+                Log.e(TAG, "Search failed", e);
+                return;
+            }
+            mainHandler.post(() -> {
+                if (generation != searchGeneration) return;
+                searchHits = hits;
+                searchCursor = 0;
+                if (hits.length > 0) {
+                    binding.recyclerViewMessages.scrollToPosition(hits[0]);
+                }
+            });
+        });
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
             onBackPressed();
             return true;
         }
+        if (item.getItemId() == R.id.action_send_file) {
+            Intent pick = new Intent(Intent.ACTION_GET_CONTENT)
+                    .setType("*/*")
+                    .addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(pick, REQUEST_PICK_FILE);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_PICK_FILE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            if (engine == null) {
+                Toast.makeText(this, "Not connected to device", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Waits for the peer if the link is down and resumes after a lost connection
+            engine.sendFile(deviceAddress, data.getData());
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (chatService != null) {
-            chatService.stop();
+        // Only unbind: the service keeps the link and the history for the next screen
+        if (engine != null) {
+            engine.removeListener(this);
+            // Nobody is left to ask, so the sender is not kept waiting
+            for (int i = 0; i < openOffers.size(); i++) {
+                openOffers.valueAt(i).dismiss();
+                engine.answerFileOffer(deviceAddress, openOffers.keyAt(i), false);
+            }
+            openOffers.clear();
+        }
+        unbindService(engineConnection);
+        searchExecutor.shutdownNow();
+        mainHandler.removeCallbacks(scheduleDrain);
+        Choreographer.getInstance().removeFrameCallback(drainCallback);
+        if (messageAdapter != null) {
+            messageAdapter.shutdown();
+        }
+    }
+
+    private static final class ReceivedMessage {
+        final Message message;
+        final long index;
+
+        ReceivedMessage(Message message, long index) {
+            this.message = message;
+            this.index = index;
         }
     }
 }
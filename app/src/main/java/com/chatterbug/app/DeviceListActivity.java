@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
@@ -19,17 +20,25 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import com.chatterbug.app.adapters.DeviceAdapter;
 import com.chatterbug.app.databinding.ActivityDeviceListBinding;
 import com.chatterbug.app.models.BluetoothDeviceModel;
+import com.chatterbug.app.services.DiscoveryCache;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DeviceListActivity extends AppCompatActivity implements DeviceAdapter.OnDeviceClickListener {
+    private static final String TAG = "DeviceListActivity";
+
     private ActivityDeviceListBinding binding;
     private BluetoothAdapter bluetoothAdapter;
     private DeviceAdapter deviceAdapter;
-    private List<BluetoothDeviceModel> deviceList;
     private boolean isDiscovering = false;
+    private DiscoveryCache discoveryCache;
+    // Cache file reads and writes stay off the main thread
+    private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
 
     private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
         @Override
@@ -42,14 +51,13 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
                     BluetoothDeviceModel deviceModel = new BluetoothDeviceModel(
                         device.getName(),
                         device.getAddress(),
-                        device.getBondState() == BluetoothDevice.BOND_BONDED
+                        device.getBondState() == BluetoothDevice.BOND_BONDED,
+                        intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) BluetoothDeviceModel.RSSI_UNKNOWN)
                     );
                     
-                    // Avoid duplicates
-                    if (!deviceList.contains(deviceModel)) {
-                        deviceList.add(deviceModel);
-                        deviceAdapter.notifyItemInserted(deviceList.size() - 1);
-                    }
+                    // Devices seen again are updated in place
+                    deviceAdapter.addOrUpdate(deviceModel);
+                    discoveryCache.put(deviceModel, System.currentTimeMillis());
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
                 isDiscovering = true;
@@ -59,6 +67,8 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
                 isDiscovering = false;
                 binding.swipeRefresh.setRefreshing(false);
                 updateStatusText();
+                discoveryCache.markInquiryComplete(System.currentTimeMillis());
+                saveDiscoveryCache();
             }
         }
     };
@@ -74,7 +84,7 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
         setupRecyclerView();
         setupSwipeRefresh();
         loadPairedDevices();
-        startDiscovery();
+        loadCachedDevices();
         registerBluetoothReceiver();
     }
 
@@ -92,8 +102,7 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
     }
 
     private void setupRecyclerView() {
-        deviceList = new ArrayList<>();
-        deviceAdapter = new DeviceAdapter(deviceList, this);
+        deviceAdapter = new DeviceAdapter(this);
         binding.recyclerViewDevices.setLayoutManager(new LinearLayoutManager(this));
         binding.recyclerViewDevices.setAdapter(deviceAdapter);
     }
@@ -117,12 +126,50 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
                     device.getAddress(),
                     true
                 );
-                deviceList.add(deviceModel);
+                deviceAdapter.addOrUpdate(deviceModel);
             }
-            deviceAdapter.notifyDataSetChanged();
         }
     }
 
+    /**
+     * Shows devices from recent scans straight away and only starts a real inquiry, which
+     * takes around 12 seconds, once the cached results have expired.
+     */
+    private void loadCachedDevices() {
+        discoveryCache = new DiscoveryCache(new File(getCacheDir(), "discovered_devices"));
+        cacheExecutor.execute(() -> {
+            try {
+                discoveryCache.load();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read discovery cache", e);
+            }
+            long now = System.currentTimeMillis();
+            List<BluetoothDeviceModel> cached = discoveryCache.getFreshDevices(now);
+            boolean needsInquiry = discoveryCache.needsInquiry(now);
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                for (BluetoothDeviceModel device : cached) {
+                    deviceAdapter.addOrUpdate(device);
+                }
+                if (needsInquiry) {
+                    startDiscovery();
+                } else {
+                    updateStatusText();
+                }
+            });
+        });
+    }
+
+    private void saveDiscoveryCache() {
+        cacheExecutor.execute(() -> {
+            try {
+                discoveryCache.save(System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write discovery cache", e);
+            }
+        });
+    }
+
     private void startDiscovery() {
         if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
             if (bluetoothAdapter.isDiscovering()) {
@@ -133,8 +180,7 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
     }
 
     private void refreshDeviceList() {
-        deviceList.clear();
-        deviceAdapter.notifyDataSetChanged();
+        deviceAdapter.clear();
         loadPairedDevices();
         startDiscovery();
     }
@@ -148,7 +194,7 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
     }
 
     private void updateStatusText() {
-        if (deviceList.isEmpty()) {
+        if (deviceAdapter.getDeviceCount() == 0) {
             binding.textStatus.setText("No devices found. Make sure other devices are discoverable.");
             binding.textStatus.setVisibility(View.VISIBLE);
         } else {
@@ -189,5 +235,8 @@ public class DeviceListActivity extends AppCompatActivity implements DeviceAdapt
         } catch (IllegalArgumentException e) {
             // Receiver was not registered
         }
+        // Keep what an interrupted scan found; the pending save still runs
+        saveDiscoveryCache();
+        cacheExecutor.shutdown();
     }
 }
@@ -1,13 +1,20 @@
 package com.example.chatterbug;
 
+import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+
+import com.chatterbug.app.services.ChatEngineService;
 
 public class MainActivity extends AppCompatActivity {
+    private static final int REQUEST_ENABLE_BT = 1;
 
     private BluetoothAdapter bluetoothAdapter;
 
@@ -22,7 +29,30 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, "Bluetooth not supported", Toast.LENGTH_SHORT).show();
         } else if (!bluetoothAdapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            startActivityForResult(enableBtIntent, 1);
+            startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+        } else if (savedInstanceState == null) {
+            preconnect();
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_ENABLE_BT && resultCode == RESULT_OK) {
+            preconnect();
+        }
+    }
+
+    /**
+     * Starts connecting to the peer we most likely chat with while the user is still on their
+     * way to the chat screen, which then picks up the link from the service.
+     */
+    private void preconnect() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
         }
+        startService(new Intent(this, ChatEngineService.class).setAction(ChatEngineService.ACTION_PRECONNECT));
     }
 }
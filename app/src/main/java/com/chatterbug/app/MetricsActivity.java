@@ -0,0 +1,112 @@
+package com.chatterbug.app;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.chatterbug.app.databinding.ActivityMetricsBinding;
+import com.chatterbug.app.services.ChatEngineService;
+import com.chatterbug.app.services.ChatMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Debug screen showing the live ChatMetrics, refreshed once a second.
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private static final String TAG = "MetricsActivity";
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private ActivityMetricsBinding binding;
+    private Handler mainHandler;
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            binding.textMetrics.setText(ChatMetrics.get().toString());
+            mainHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        binding = ActivityMetricsBinding.inflate(getLayoutInflater());
+        setContentView(binding.getRoot());
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        setSupportActionBar(binding.toolbar);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setTitle(R.string.metrics);
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mainHandler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mainHandler.removeCallbacks(refresh);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_metrics, menu);
+        menu.findItem(R.id.action_insecure_mode).setChecked(ChatEngineService.isInsecureMode(this));
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == android.R.id.home) {
+            onBackPressed();
+            return true;
+        } else if (id == R.id.action_dump_metrics) {
+            dumpToFile();
+            return true;
+        } else if (id == R.id.action_reset_metrics) {
+            ChatMetrics.get().reset();
+            binding.textMetrics.setText(ChatMetrics.get().toString());
+            return true;
+        } else if (id == R.id.action_insecure_mode) {
+            // Lets the two connect times be compared; both phones need the same setting
+            item.setChecked(!item.isChecked());
+            ChatEngineService.setInsecureMode(this, item.isChecked());
+            Toast.makeText(this, R.string.insecure_mode_next_start, Toast.LENGTH_LONG).show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void dumpToFile() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "metrics-" + stamp + ".txt");
+        try {
+            ChatMetrics.get().dumpToFile(file);
+            Toast.makeText(this, "Saved to " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write metrics", e);
+            Toast.makeText(this, "Could not save metrics", Toast.LENGTH_SHORT).show();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.chatterbug.app.adapters;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -7,26 +9,113 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.chatterbug.app.R;
 import com.chatterbug.app.models.BluetoothDeviceModel;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Device list keyed by address. Adding a device that is already listed updates it in place;
+ * the list is kept sorted by signal strength and every change is turned into item-level
+ * updates by an AsyncListDiffer, which diffs on a background thread. Changes made in the same
+ * main-loop turn are submitted together. All methods must be called on the main thread.
+ */
 public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceViewHolder> {
-    private List<BluetoothDeviceModel> deviceList;
+    private final Map<String, BluetoothDeviceModel> devicesByAddress = new HashMap<>();
+    private final AsyncListDiffer<BluetoothDeviceModel> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable submitTask = this::submit;
+    private boolean submitScheduled;
     private OnDeviceClickListener listener;
 
     public interface OnDeviceClickListener {
         void onDeviceClick(BluetoothDeviceModel device);
     }
 
-    public DeviceAdapter(List<BluetoothDeviceModel> deviceList, OnDeviceClickListener listener) {
-        this.deviceList = deviceList;
+    private static final DiffUtil.ItemCallback<BluetoothDeviceModel> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<BluetoothDeviceModel>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull BluetoothDeviceModel oldItem, @NonNull BluetoothDeviceModel newItem) {
+                    return oldItem.getAddress().equals(newItem.getAddress());
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull BluetoothDeviceModel oldItem, @NonNull BluetoothDeviceModel newItem) {
+                    return Objects.equals(oldItem.getName(), newItem.getName())
+                            && oldItem.isPaired() == newItem.isPaired()
+                            && oldItem.getRssi() == newItem.getRssi();
+                }
+            };
+
+    // Strongest signal first; devices without a reading go last, by name
+    private static final Comparator<BluetoothDeviceModel> BY_SIGNAL = (a, b) -> {
+        if (a.getRssi() != b.getRssi()) {
+            return Integer.compare(b.getRssi(), a.getRssi());
+        }
+        int byName = String.CASE_INSENSITIVE_ORDER.compare(
+                a.getName() != null ? a.getName() : "", b.getName() != null ? b.getName() : "");
+        return byName != 0 ? byName : a.getAddress().compareTo(b.getAddress());
+    };
+
+    public DeviceAdapter(OnDeviceClickListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * Adds a device, or updates the listed device with the same address. A device stays marked
+     * as paired, and keeps its last known name and signal strength when the update lacks them.
+     */
+    public void addOrUpdate(BluetoothDeviceModel device) {
+        BluetoothDeviceModel existing = devicesByAddress.get(device.getAddress());
+        if (existing != null) {
+            // The differ still holds the old instance, so updates go into a fresh copy
+            device = new BluetoothDeviceModel(
+                    device.getName() != null ? device.getName() : existing.getName(),
+                    device.getAddress(),
+                    device.isPaired() || existing.isPaired(),
+                    device.hasRssi() ? device.getRssi() : existing.getRssi());
+            if (DIFF_CALLBACK.areContentsTheSame(existing, device)) return;
+        }
+        devicesByAddress.put(device.getAddress(), device);
+        scheduleSubmit();
+    }
+
+    public void clear() {
+        devicesByAddress.clear();
+        scheduleSubmit();
+    }
+
+    /**
+     * Number of known devices, including changes not yet shown.
+     */
+    public int getDeviceCount() {
+        return devicesByAddress.size();
+    }
+
+    private void scheduleSubmit() {
+        if (!submitScheduled) {
+            submitScheduled = true;
+            mainHandler.post(submitTask);
+        }
+    }
+
+    private void submit() {
+        submitScheduled = false;
+        List<BluetoothDeviceModel> sorted = new ArrayList<>(devicesByAddress.values());
+        Collections.sort(sorted, BY_SIGNAL);
+        differ.submitList(sorted);
+    }
+
     @NonNull
     @Override
     public DeviceViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -36,13 +125,13 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
 
     @Override
     public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position) {
-        BluetoothDeviceModel device = deviceList.get(position);
+        BluetoothDeviceModel device = differ.getCurrentList().get(position);
         holder.bind(device);
     }
 
     @Override
     public int getItemCount() {
-        return deviceList.size();
+        return differ.getCurrentList().size();
     }
 
     class DeviceViewHolder extends RecyclerView.ViewHolder {
@@ -59,14 +148,18 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
             itemView.setOnClickListener(v -> {
                 int position = getAdapterPosition();
                 if (position != RecyclerView.NO_POSITION && listener != null) {
-                    listener.onDeviceClick(deviceList.get(position));
+                    listener.onDeviceClick(differ.getCurrentList().get(position));
                 }
             });
         }
 
         public void bind(BluetoothDeviceModel device) {
             textDeviceName.setText(device.getName());
-            textDeviceAddress.setText(device.getAddress());
+            if (device.hasRssi()) {
+                textDeviceAddress.setText(device.getAddress() + "  \u00b7  " + device.getRssi() + " dBm");
+            } else {
+                textDeviceAddress.setText(device.getAddress());
+            }
             
             if (device.isPaired()) {
                 imageDeviceStatus.setImageResource(R.drawable.ic_bluetooth_connected);
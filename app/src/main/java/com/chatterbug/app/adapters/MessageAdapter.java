@@ -1,5 +1,9 @@
 package com.chatterbug.app.adapters;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,30 +14,201 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.chatterbug.app.R;
 import com.chatterbug.app.models.Message;
+import com.chatterbug.app.services.ChatMetrics;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    private static final String TAG = "MessageAdapter";
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
-    
+
+    // Paging mode keeps at most MAX_PAGES pages of PAGE_SIZE messages in memory
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 6;
+
     private List<Message> messageList;
-    private SimpleDateFormat timeFormat;
+    private final TimeLabelFormatter timeFormat = new TimeLabelFormatter();
+
+    private PageSource pageSource;
+    private SparseArray<List<Message>> pages;
+    private Set<Integer> loadingPages;
+    private ExecutorService pageLoader;
+    private Handler mainHandler;
+    private int itemCount;
+
+    /**
+     * Backing store for paging mode. Positions are message indexes, oldest first.
+     * load() is called on a background thread.
+     */
+    public interface PageSource {
+        int size();
+        List<Message> load(int from, int count) throws IOException;
+    }
 
     public MessageAdapter(List<Message> messageList) {
         this.messageList = messageList;
-        this.timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+    }
+
+    /**
+     * Paging mode: only a window of pages around what is being bound is kept in memory. Pages
+     * are loaded in the background when first bound and dropped once they fall out of the window.
+     */
+    public MessageAdapter(PageSource pageSource) {
+        this.pageSource = pageSource;
+        this.pages = new SparseArray<>();
+        this.loadingPages = new HashSet<>();
+        this.pageLoader = Executors.newSingleThreadExecutor();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.itemCount = pageSource.size();
+    }
+
+    /**
+     * Shows a message that has already been appended to the page source at its index there.
+     * Must be called on the main thread.
+     */
+    public void putMessage(int position, Message message) {
+        int oldCount = getItemCount();
+        setMessage(position, message);
+        if (position < oldCount) {
+            notifyItemChanged(position);
+        } else {
+            notifyItemRangeInserted(oldCount, position + 1 - oldCount);
+        }
+    }
+
+    /**
+     * Shows a batch of messages keyed by their index in the page source, with a single range
+     * insert for the new rows. Must be called on the main thread.
+     *
+     * Indexes may come in any order: a message sent on the main thread can be appended to the
+     * source after one received on a connection thread but shown before it. Rows up to the
+     * highest index are inserted at once, and a row whose message is still on its way stays a
+     * placeholder until it is put.
+     */
+    public void putMessages(SparseArray<Message> messages) {
+        if (messages.size() == 0) return;
+        int oldCount = getItemCount();
+        for (int i = 0; i < messages.size(); i++) {
+            int position = messages.keyAt(i);
+            setMessage(position, messages.valueAt(i));
+            if (position < oldCount) {
+                notifyItemChanged(position);
+            }
+        }
+        int newCount = getItemCount();
+        if (newCount > oldCount) {
+            notifyItemRangeInserted(oldCount, newCount - oldCount);
+        }
+    }
+
+    private void setMessage(int position, Message message) {
+        if (pageSource == null) {
+            while (messageList.size() <= position) {
+                messageList.add(null);
+            }
+            messageList.set(position, message);
+            return;
+        }
+
+        itemCount = Math.max(itemCount, position + 1);
+        int pageIndex = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+        List<Message> page = pages.get(pageIndex);
+        if (page == null) {
+            // Only a page following one in memory is started here; others load when bound
+            if (pages.get(pageIndex - 1) == null) return;
+            page = new ArrayList<>(PAGE_SIZE);
+            pages.put(pageIndex, page);
+            evictFarPages(pageIndex);
+        }
+        while (page.size() <= offset) {
+            page.add(null);
+        }
+        page.set(offset, message);
+    }
+
+    public void shutdown() {
+        if (pageLoader != null) {
+            pageLoader.shutdownNow();
+        }
+    }
+
+    private Message getMessage(int position) {
+        if (pageSource == null) {
+            return position < messageList.size() ? messageList.get(position) : null;
+        }
+        int pageIndex = position / PAGE_SIZE;
+        List<Message> page = pages.get(pageIndex);
+        if (page == null) {
+            requestPage(pageIndex);
+            return null;
+        }
+        // Prefetch the neighbouring page before the user reaches it
+        int offset = position % PAGE_SIZE;
+        if (offset < PAGE_SIZE / 4 && pageIndex > 0) {
+            requestPage(pageIndex - 1);
+        } else if (offset >= PAGE_SIZE * 3 / 4 && (pageIndex + 1) * PAGE_SIZE < itemCount) {
+            requestPage(pageIndex + 1);
+        }
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    private void requestPage(final int pageIndex) {
+        if (pageLoader.isShutdown() || pages.get(pageIndex) != null || !loadingPages.add(pageIndex)) return;
+
+        final int from = pageIndex * PAGE_SIZE;
+        final int count = Math.min(PAGE_SIZE, itemCount - from);
+        pageLoader.execute(() -> {
+            List<Message> loaded;
+            try {
+                loaded = pageSource.load(from, count);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load page " + pageIndex, e);
+                loaded = null;
+            }
+            final List<Message> page = loaded;
+            mainHandler.post(() -> {
+                loadingPages.remove(pageIndex);
+                if (page == null) return;
+                // Messages were appended to this page while it was loading; fetch it again
+                if (page.size() < Math.min(PAGE_SIZE, itemCount - from)) {
+                    requestPage(pageIndex);
+                    return;
+                }
+                List<Message> current = new ArrayList<>(PAGE_SIZE);
+                current.addAll(page);
+                pages.put(pageIndex, current);
+                evictFarPages(pageIndex);
+                notifyItemRangeChanged(from, current.size());
+            });
+        });
+    }
+
+    private void evictFarPages(int centerPage) {
+        while (pages.size() > MAX_PAGES) {
+            int farthest = 0;
+            for (int i = 1; i < pages.size(); i++) {
+                if (Math.abs(pages.keyAt(i) - centerPage) > Math.abs(pages.keyAt(farthest) - centerPage)) {
+                    farthest = i;
+                }
+            }
+            pages.removeAt(farthest);
+        }
     }
 
     @Override
     public int getItemViewType(int position) {
-        if (messageList == null || position < 0 || position >= messageList.size()) {
+        if (position < 0 || position >= getItemCount()) {
             return VIEW_TYPE_RECEIVED; // Default fallback
         }
-        Message message = messageList.get(position);
+        Message message = getMessage(position);
         return (message != null && message.isSent()) ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
@@ -51,15 +226,13 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        if (messageList == null || position < 0 || position >= messageList.size()) {
+        if (position < 0 || position >= getItemCount()) {
             return; // Safety check
         }
-        
-        Message message = messageList.get(position);
-        if (message == null) {
-            return; // Safety check
-        }
-        
+
+        // A null message is a placeholder until its page has loaded
+        Message message = getMessage(position);
+
         if (holder instanceof SentMessageViewHolder) {
             ((SentMessageViewHolder) holder).bind(message);
         } else if (holder instanceof ReceivedMessageViewHolder) {
@@ -69,6 +242,9 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public int getItemCount() {
+        if (pageSource != null) {
+            return itemCount;
+        }
         return messageList != null ? messageList.size() : 0;
     }
 
@@ -83,10 +259,29 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         }
 
         public void bind(Message message) {
-            if (message == null) return;
-            
+            if (message == null) {
+                textMessage.setText("");
+                textTime.setText("");
+                return;
+            }
+
             textMessage.setText(message.getContent() != null ? message.getContent() : "");
-            textTime.setText(timeFormat.format(new Date(message.getTimestamp())));
+            textTime.setText(timeFormat.format(message.getTimestamp()) + statusSuffix(message.getStatus()));
+        }
+    }
+
+    private static String statusSuffix(int status) {
+        switch (status) {
+            case Message.STATUS_SENDING:
+                return " \u2022";
+            case Message.STATUS_SENT:
+                return " \u2713";
+            case Message.STATUS_DELIVERED:
+                return " \u2713\u2713";
+            case Message.STATUS_FAILED:
+                return " !";
+            default:
+                return "";
         }
     }
 
@@ -101,10 +296,20 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         }
 
         public void bind(Message message) {
-            if (message == null) return;
-            
+            if (message == null) {
+                textMessage.setText("");
+                textTime.setText("");
+                return;
+            }
+
             textMessage.setText(message.getContent() != null ? message.getContent() : "");
-            textTime.setText(timeFormat.format(new Date(message.getTimestamp())));
+            textTime.setText(timeFormat.format(message.getTimestamp()));
+
+            // Only the first bind after arrival counts
+            if (message.getReceivedAt() != 0) {
+                ChatMetrics.get().getRenderLatency().record((System.nanoTime() - message.getReceivedAt()) / 1000);
+                message.setReceivedAt(0);
+            }
         }
     }
 }
@@ -0,0 +1,27 @@
+package com.chatterbug.app.adapters;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The "HH:mm" label bound under every message row. Reuses one Date, so formatting allocates
+ * only the result. Not thread-safe; each adapter owns one.
+ */
+public class TimeLabelFormatter {
+    private final SimpleDateFormat format;
+    private final Date date = new Date();
+
+    public TimeLabelFormatter() {
+        this(Locale.getDefault());
+    }
+
+    public TimeLabelFormatter(Locale locale) {
+        format = new SimpleDateFormat("HH:mm", locale);
+    }
+
+    public String format(long timestamp) {
+        date.setTime(timestamp);
+        return format.format(date);
+    }
+}
@@ -3,9 +3,15 @@ package com.chatterbug.app.models;
 import java.util.Objects;
 
 public class BluetoothDeviceModel {
+    // Paired devices that have not been seen in a scan have no signal strength
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
     private String name;
     private String address;
     private boolean isPaired;
+    private int rssi = RSSI_UNKNOWN;
+    // Wall-clock time of the scan that last found this device, 0 if never
+    private long lastSeen;
 
     public BluetoothDeviceModel(String name, String address, boolean isPaired) {
         this.name = name;
@@ -13,6 +19,11 @@ public class BluetoothDeviceModel {
         this.isPaired = isPaired;
     }
 
+    public BluetoothDeviceModel(String name, String address, boolean isPaired, int rssi) {
+        this(name, address, isPaired);
+        this.rssi = rssi;
+    }
+
     public String getName() {
         return name;
     }
@@ -37,6 +48,26 @@ public class BluetoothDeviceModel {
         isPaired = paired;
     }
 
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public boolean hasRssi() {
+        return rssi != RSSI_UNKNOWN;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -56,6 +87,8 @@ public class BluetoothDeviceModel {
                 "name='" + name + '\'' +
                 ", address='" + address + '\'' +
                 ", isPaired=" + isPaired +
+                ", rssi=" + rssi +
+                ", lastSeen=" + lastSeen +
                 '}';
     }
 }
@@ -1,14 +1,77 @@
 package com.chatterbug.app.models;
 
 public class Message {
+    // Delivery status of a sent message; received messages stay STATUS_NONE
+    public static final int STATUS_NONE = 0;
+    public static final int STATUS_SENDING = 1;
+    public static final int STATUS_SENT = 2;
+    public static final int STATUS_DELIVERED = 3;
+    public static final int STATUS_FAILED = 4;
+
+    // Message types on the wire, see MessageCodec. Text carries its content as the payload.
+    public static final int TYPE_TEXT = 0;
+
+    // Set by the sender; unique among the messages one device sends
+    private long id;
+    private int type = TYPE_TEXT;
+    // Application flags sent along with the message
+    private int flags;
+    // The sender's clock when it created the message; equals timestamp for sent messages
+    private long senderTimestamp;
+    // Raw payload of a type this version does not interpret; null for text
+    private byte[] payload;
     private String content;
     private boolean isSent;
     private long timestamp;
+    private int status = STATUS_NONE;
+    // System.nanoTime() when a received message arrived, for render latency; not stored
+    private long receivedAt;
 
     public Message(String content, boolean isSent, long timestamp) {
         this.content = content;
         this.isSent = isSent;
         this.timestamp = timestamp;
+        this.senderTimestamp = timestamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public long getSenderTimestamp() {
+        return senderTimestamp;
+    }
+
+    public void setSenderTimestamp(long senderTimestamp) {
+        this.senderTimestamp = senderTimestamp;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
     }
 
     public String getContent() {
@@ -35,12 +98,31 @@ public class Message {
         this.timestamp = timestamp;
     }
 
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
     @Override
     public String toString() {
         return "Message{" +
-                "content='" + content + '\'' +
+                "id=" + id +
+                ", type=" + type +
+                ", content='" + content + '\'' +
                 ", isSent=" + isSent +
                 ", timestamp=" + timestamp +
+                ", status=" + status +
                 '}';
     }
 }
@@ -2,21 +2,47 @@ package com.chatterbug.app.services;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Handler;
 import android.util.Log;
 
+import com.chatterbug.app.models.Message;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 public class BluetoothChatService {
     private static final String TAG = "BluetoothChatService";
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final UUID MY_UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    // A classic Bluetooth piconet holds at most seven active links
+    public static final int MAX_PEERS = 7;
+    // Accept loop plus a connect attempt and a reader per peer
+    private static final int MAX_IO_THREADS = 1 + 2 * MAX_PEERS;
+    private static final long IO_THREAD_KEEP_ALIVE_S = 30;
+
+    // Capability bits advertised in the hello frame
+    private static final int CAP_DEFLATE = 1;
+    // The hello ends with the sender's public key and every later frame is sealed
+    private static final int CAP_ENCRYPT = 2;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -24,167 +50,656 @@ public class BluetoothChatService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
-    private final BluetoothAdapter bluetoothAdapter;
-    private final Handler handler;
+    // Reliable delivery: at most this many unacked messages per peer
+    public static final int MAX_UNACKED = 64;
+
+    // Heartbeat defaults, see setHeartbeat()
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 2000;
+    public static final long DEFAULT_DEAD_LINK_TIMEOUT_MS = 10000;
+    // Retransmit and heartbeat checks run on this period
+    private static final long TICK_MS = 500;
+
+    private final Transport transport;
     private final BluetoothChatListener listener;
-    private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-    private int state;
+    // Frames are sealed with a FrameCipher; for links the transport does not encrypt itself
+    private final boolean encrypt;
+    // Service lifecycle: STATE_LISTEN while accepting, otherwise STATE_NONE
+    private final AtomicInteger acceptState = new AtomicInteger(STATE_NONE);
+    private volatile AcceptLoop acceptLoop;
+    // Connections are keyed by remote device address
+    private final ConcurrentHashMap<String, ConnectTask> connectTasks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    // Runs the accept loop, connect attempts and connection readers; all of them block on I/O
+    private final ExecutorService ioExecutor = new ThreadPoolExecutor(0, MAX_IO_THREADS,
+            IO_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    private final FileTransferManager fileTransfers = new FileTransferManager(this::sendFrame);
+    // Per-peer state that outlives individual connections
+    private final ConcurrentHashMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    private final ReconnectSupervisor reconnectSupervisor = new ReconnectSupervisor(this::reconnect);
+    private final SecureRandom random = new SecureRandom();
+    private final BufferPool bufferPool = BufferPool.shared();
+    private volatile boolean autoReconnect = true;
+    private final Object timerLock = new Object();
+    private ScheduledExecutorService timer;
+    private volatile long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private volatile long deadLinkTimeoutMs = DEFAULT_DEAD_LINK_TIMEOUT_MS;
 
+    /**
+     * Callbacks are per peer; address identifies the remote device. For a single peer the
+     * state moves between STATE_CONNECTING and STATE_CONNECTED, and falls back to
+     * STATE_LISTEN (or STATE_NONE when not accepting) once it is gone.
+     */
     public interface BluetoothChatListener {
-        void onConnectionStateChanged(int state);
-        void onMessageReceived(byte[] buffer, int bytes);
-        void onConnectionFailed();
-        void onConnectionLost();
+        void onConnectionStateChanged(String address, int state);
+        // The listener owns message and must release() it, on any thread, once done with it
+        void onMessageReceived(String address, PooledBuffer message);
+        void onConnectionFailed(String address);
+        void onConnectionLost(String address);
+        // Called after every heartbeat round trip with the smoothed RTT and its variation
+        void onLinkQualityChanged(String address, double smoothedRttMillis, double rttVariationMillis);
+    }
+
+    /**
+     * Reports the delivery status of one message as a Message.STATUS_* value: STATUS_SENT once
+     * it has been written to the link, STATUS_DELIVERED once the peer acknowledged it, or
+     * STATUS_FAILED if the peer was given up on first. Called on a service thread.
+     */
+    public interface DeliveryCallback {
+        void onStatusChanged(int status);
     }
 
     public BluetoothChatService(Context context, BluetoothChatListener listener) {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(context, listener, false);
+    }
+
+    /**
+     * With insecure set, links use insecure RFCOMM, which needs no pairing and connects faster,
+     * and are encrypted by the service instead. Both ends must use the same mode.
+     */
+    public BluetoothChatService(Context context, BluetoothChatListener listener, boolean insecure) {
+        this(new RfcommTransport(BluetoothAdapter.getDefaultAdapter(), !insecure), listener, insecure);
+    }
+
+    public BluetoothChatService(Transport transport, BluetoothChatListener listener) {
+        this(transport, listener, false);
+    }
+
+    public BluetoothChatService(Transport transport, BluetoothChatListener listener, boolean encrypt) {
+        this.transport = transport;
         this.listener = listener;
-        this.handler = new Handler();
-        state = STATE_NONE;
+        this.encrypt = encrypt;
+    }
+
+    public boolean isEncrypted() {
+        return encrypt;
     }
 
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + this.state + " -> " + state);
-        this.state = state;
-        
+    /**
+     * Reports a peer's current state rather than the state a caller just moved it to, so when
+     * transitions on different threads race the last callback still tells the truth. Never
+     * called with a lock held.
+     */
+    private void notifyState(String address) {
+        int state = getState(address);
+        Log.d(TAG, "state " + address + " -> " + state);
+
         if (listener != null) {
-            listener.onConnectionStateChanged(state);
+            listener.onConnectionStateChanged(address, state);
         }
     }
 
-    public synchronized int getState() {
+    /**
+     * Overall state: connected if any peer is connected, connecting if any connect is in
+     * progress, otherwise listening or idle.
+     */
+    public int getState() {
+        int state = idleState();
+        for (PeerSession session : sessions.values()) {
+            int peerState = session.state.get();
+            if (peerState == STATE_CONNECTED) return STATE_CONNECTED;
+            if (peerState == STATE_CONNECTING) state = STATE_CONNECTING;
+        }
         return state;
     }
 
-    public synchronized void start() {
+    public int getState(String address) {
+        PeerSession session = sessions.get(address);
+        if (session != null && session.state.get() != STATE_NONE) return session.state.get();
+        if (reconnectSupervisor.isPending(address)) return STATE_CONNECTING;
+        return idleState();
+    }
+
+    private int idleState() {
+        return acceptState.get();
+    }
+
+    /**
+     * When enabled (the default), a dropped connection that we initiated is retried with
+     * exponential backoff and unsent messages are replayed once it is back. Turning it off gives
+     * up on peers waiting out their backoff and fails the messages they still had to send.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        if (autoReconnect) return;
+        for (PeerSession session : sessions.values()) {
+            String address = session.address;
+            if (session.state.get() != STATE_NONE || !reconnectSupervisor.isPending(address)) continue;
+            reconnectSupervisor.cancel(address);
+            session.reconnectAttempts = 0;
+            failUnacked(session);
+            notifyState(address);
+            if (listener != null) {
+                listener.onConnectionFailed(address);
+            }
+        }
+    }
+
+    /**
+     * Every connection is pinged each intervalMs. A connection that has not received anything
+     * at all from its peer for deadLinkTimeoutMs is treated as lost, without waiting for the
+     * socket to notice.
+     */
+    public void setHeartbeat(long intervalMs, long deadLinkTimeoutMs) {
+        if (intervalMs <= 0 || deadLinkTimeoutMs <= intervalMs) {
+            throw new IllegalArgumentException("Dead link timeout must be longer than the interval");
+        }
+        this.heartbeatIntervalMs = intervalMs;
+        this.deadLinkTimeoutMs = deadLinkTimeoutMs;
+    }
+
+    /**
+     * Smoothed round-trip time to a connected peer in milliseconds, or -1 before the first
+     * heartbeat has come back.
+     */
+    public double getRoundTripTime(String address) {
+        Connection r = connections.get(address);
+        return r != null && r.rtt.hasSamples() ? r.rtt.getSmoothedRtt() : -1;
+    }
+
+    public FileTransferManager getFileTransfers() {
+        return fileTransfers;
+    }
+
+    public List<String> getConnectedPeers() {
+        return new ArrayList<>(connections.keySet());
+    }
+
+    /**
+     * Starts accepting incoming connections. Existing connections are kept.
+     */
+    public void start() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        if (!acceptState.compareAndSet(STATE_NONE, STATE_LISTEN)) return;
+        AcceptLoop loop = new AcceptLoop();
+        acceptLoop = loop;
+        if (!execute(loop)) {
+            acceptState.compareAndSet(STATE_LISTEN, STATE_NONE);
         }
+    }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    public void connect(String address) {
+        Log.d(TAG, "connect to: " + address);
+        reconnectSupervisor.cancel(address);
+        PeerSession session = sessionFor(address);
+        session.outgoing = true;
+        startConnect(session);
+    }
+
+    /**
+     * Skips the remaining backoff and retries a dropped peer right away.
+     */
+    public void reconnectNow(String address) {
+        connect(address);
+    }
+
+    private void reconnect(String address) {
+        PeerSession session = sessions.get(address);
+        if (session == null) return;
+        session.reconnectAttempts++;
+        // Goes around connect() so the attempt count is kept
+        startConnect(session);
+    }
+
+    /**
+     * NONE -> CONNECTING. Does nothing if the peer is already connecting or connected.
+     */
+    private void startConnect(PeerSession session) {
+        String address = session.address;
+        if (!session.state.compareAndSet(STATE_NONE, STATE_CONNECTING)) {
+            Log.d(TAG, "already " + (session.state.get() == STATE_CONNECTED ? "connected" : "connecting") + " to " + address);
+            return;
+        }
+        ConnectTask task = new ConnectTask(address);
+        ConnectTask previous = connectTasks.put(address, task);
+        if (previous != null) {
+            previous.cancel();
+        }
+        notifyState(address);
+        // This attempt is already counted
+        if (linkCount() > MAX_PEERS) {
+            Log.w(TAG, "already at " + MAX_PEERS + " peers, not connecting to " + address);
+            task.cancel();
+            connectionFailed(task);
+            return;
         }
+        if (!execute(task)) {
+            connectionFailed(task);
+        }
+    }
 
-        setState(STATE_LISTEN);
+    /**
+     * Links up or being set up, which together must stay within MAX_PEERS.
+     */
+    private int linkCount() {
+        return connections.size() + connectTasks.size();
+    }
+
+    private PeerSession sessionFor(String address) {
+        PeerSession session = sessions.get(address);
+        if (session == null) {
+            PeerSession created = new PeerSession(address, random.nextLong());
+            session = sessions.putIfAbsent(address, created);
+            if (session == null) {
+                session = created;
+            }
+        }
+        return session;
+    }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (acceptThread == null) {
-            acceptThread = new AcceptThread();
-            acceptThread.start();
+    private boolean execute(Runnable task) {
+        try {
+            ioExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "No connection thread available", e);
+            return false;
         }
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
+    /**
+     * Starts the connection for a peer that has just been moved to STATE_CONNECTED.
+     * connectStartedAt is the System.nanoTime() our connect began at, or 0 for an accepted socket.
+     */
+    private void connected(Transport.Channel channel, PeerSession session, long connectStartedAt) {
+        String address = session.address;
+        Log.d(TAG, "connected " + address);
+        reconnectSupervisor.cancel(address);
+        session.reconnectAttempts = 0;
+        startTimer();
+
+        KeyPair keyPair = null;
+        if (encrypt) {
+            try {
+                keyPair = FrameCipher.generateKeyPair();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot encrypt link to " + address, e);
+                try {
+                    channel.close();
+                } catch (IOException closeFailed) {
+                    Log.e(TAG, "close() of connect socket failed", closeFailed);
+                }
+                session.state.compareAndSet(STATE_CONNECTED, STATE_NONE);
+                notifyState(address);
+                return;
+            }
+        }
+        Connection connection = new Connection(channel, address, keyPair, connectStartedAt);
+        // A new socket to the same device replaces the old one
+        Connection existing = connections.put(address, connection);
+        if (existing != null) {
+            existing.cancel();
+            fileTransfers.onPeerDisconnected(address);
+        }
+        // Disconnected or stopped while this connection was being set up, or the connection it
+        // replaces was reported lost first, which left the peer to the reconnect logic
+        if (sessions.get(address) != session || session.state.get() != STATE_CONNECTED
+                || !execute(connection)) {
+            connection.cancel();
+            connections.remove(address, connection);
+            session.state.compareAndSet(STATE_CONNECTED, STATE_NONE);
+            notifyState(address);
+            return;
+        }
+        // Advertise what we support before anything else goes out on this connection
+        // Unacked messages are sent again once the peer's hello says where its session stands
+        connection.sendHello(session.localToken);
+        fileTransfers.onPeerConnected(address);
+
+        notifyState(address);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
+    private void startTimer() {
+        synchronized (timerLock) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor();
+                timer.scheduleWithFixedDelay(this::onTick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
             }
         }
+    }
+
+    /**
+     * Closes the connection to a single peer and leaves the others running.
+     */
+    public void disconnect(String address) {
+        Log.d(TAG, "disconnect " + address);
+        reconnectSupervisor.cancel(address);
+        PeerSession session = sessions.remove(address);
+        if (session != null) {
+            session.state.set(STATE_NONE);
+            failUnacked(session);
+        }
+
+        ConnectTask connecting = connectTasks.remove(address);
+        if (connecting != null) {
+            connecting.cancel();
+        }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        Connection connection = connections.remove(address);
+        if (connection != null) {
+            connection.cancel();
+            fileTransfers.onPeerDisconnected(address);
         }
 
-        // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+        notifyState(address);
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected");
+    public void stop() {
+        Log.d(TAG, "stop");
+        reconnectSupervisor.shutdown();
+        synchronized (timerLock) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+        List<PeerSession> stopped = new ArrayList<>(sessions.values());
+        sessions.clear();
+        for (PeerSession session : stopped) {
+            session.state.set(STATE_NONE);
+            failUnacked(session);
+        }
 
-        // Cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        for (ConnectTask task : connectTasks.values()) {
+            task.cancel();
         }
+        connectTasks.clear();
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        List<String> addresses = new ArrayList<>(connections.keySet());
+        for (Connection connection : connections.values()) {
+            connection.cancel();
         }
+        connections.clear();
+        fileTransfers.shutdown();
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        acceptState.set(STATE_NONE);
+        AcceptLoop loop = acceptLoop;
+        if (loop != null) {
+            loop.cancel();
+            acceptLoop = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
+        for (String address : addresses) {
+            notifyState(address);
+        }
+    }
 
-        setState(STATE_CONNECTED);
+    public boolean write(String address, byte[] out) {
+        return write(address, out, null);
     }
 
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
+    /**
+     * Queues a message for one peer and returns immediately. Every message carries a sequence
+     * number and stays in the peer's window until the peer acknowledges it: it is sent again
+     * if no ack arrives within the link's retransmission timeout and replayed after an automatic
+     * reconnect. Returns false if the peer is not connected or MAX_UNACKED messages are
+     * already waiting for an ack.
+     */
+    public boolean write(String address, byte[] out, DeliveryCallback callback) {
+        Connection r = connections.get(address);
+        PeerSession session = sessions.get(address);
+        if (r == null || session == null) return false;
 
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        synchronized (session) {
+            if (session.unacked.size() >= MAX_UNACKED) return false;
+            OutgoingMessage message = new OutgoingMessage(session.nextSeq, out, callback);
+            // Sequence numbers must not skip, so one is only taken once the frame is queued
+            if (!r.write(message.payload, message)) return false;
+            session.nextSeq++;
+            message.transmittedAt = System.currentTimeMillis();
+            session.unacked.add(message);
         }
+        ChatMetrics.get().recordMessageOut();
+        return true;
+    }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    /**
+     * Sends everything in the window again, oldest first (go-back-N).
+     */
+    private void retransmit(PeerSession session, Connection thread) {
+        synchronized (session) {
+            if (!session.unacked.isEmpty()) {
+                Log.d(TAG, "retransmitting " + session.unacked.size() + " messages to " + session.address);
+            }
+            long now = System.currentTimeMillis();
+            for (OutgoingMessage message : session.unacked) {
+                if (!thread.write(message.payload, message)) break;
+                message.transmittedAt = now;
+            }
         }
+    }
+
+    private void onTick() {
+        long now = System.currentTimeMillis();
+        for (Connection thread : connections.values()) {
+            if (now - thread.lastReceivedAt >= deadLinkTimeoutMs) {
+                Log.w(TAG, "nothing heard from " + thread.address + " in " + deadLinkTimeoutMs + "ms");
+                // The reader fails once the socket is closed and reports the loss
+                thread.cancel();
+                continue;
+            }
+            if (now - thread.lastPingAt >= heartbeatIntervalMs) {
+                thread.sendPing(now);
+            }
 
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+            PeerSession session = sessions.get(thread.address);
+            if (session == null) continue;
+            OutgoingMessage oldest;
+            synchronized (session) {
+                oldest = session.unacked.peekFirst();
+            }
+            if (oldest != null && now - oldest.transmittedAt >= thread.rtt.getRetransmitTimeout()) {
+                thread.rtt.backOff();
+                retransmit(session, thread);
+            }
         }
+    }
 
-        setState(STATE_NONE);
+    private void onAck(PeerSession session, int ackedSeq) {
+        List<OutgoingMessage> delivered = new ArrayList<>();
+        synchronized (session) {
+            while (!session.unacked.isEmpty() && session.unacked.peekFirst().seq <= ackedSeq) {
+                delivered.add(session.unacked.pollFirst());
+            }
+        }
+        for (OutgoingMessage message : delivered) {
+            message.report(Message.STATUS_DELIVERED);
+        }
     }
 
-    public void write(byte[] out) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    /**
+     * Gives up on everything still waiting for an ack. The session starts over with a new
+     * token so the peer does not wait for the sequence numbers that were abandoned.
+     */
+    private void failUnacked(PeerSession session) {
+        List<OutgoingMessage> failed;
+        synchronized (session) {
+            failed = new ArrayList<>(session.unacked);
+            session.unacked.clear();
+            session.localToken = random.nextLong();
+            session.nextSeq = 1;
         }
-        r.write(out);
+        for (OutgoingMessage message : failed) {
+            message.report(Message.STATUS_FAILED);
+        }
+    }
+
+    /**
+     * Sends a file to a peer in the background and returns its transfer id. The transfer waits
+     * for the peer if it is not connected and resumes after a lost connection.
+     */
+    public long sendFile(String address, File file) throws IOException {
+        return fileTransfers.sendFile(address, file);
+    }
+
+    private boolean sendFrame(String address, int type, byte[] payload) {
+        Connection r = connections.get(address);
+        return r != null && r.writer.enqueue(type, payload, null);
     }
 
-    private void connectionFailed() {
-        setState(STATE_LISTEN);
+    /**
+     * Uncompressed chat bytes divided by bytes sent for them on this peer's connection; 1.0
+     * when compression is off or has not helped.
+     */
+    public double getCompressionRatio(String address) {
+        Connection r = connections.get(address);
+        return r != null ? r.compressor.getCompressionRatio() : 1.0;
+    }
+
+    public int getQueueDepth(String address) {
+        Connection r = connections.get(address);
+        return r != null ? r.writer.getQueueDepth() : 0;
+    }
+
+    private void connectionFailed(ConnectTask task) {
+        String address = task.mmAddress;
+        // A newer attempt may already have taken over this address
+        if (!connectTasks.remove(address, task)) return;
+        PeerSession session = sessions.get(address);
+        if (session == null || !session.state.compareAndSet(STATE_CONNECTING, STATE_NONE)) return;
+
+        // Keep retrying a peer that dropped; a first connect that fails is reported as is
+        if (session.reconnectAttempts > 0) {
+            if (autoReconnect && reconnectSupervisor.schedule(address, session.reconnectAttempts)) {
+                notifyState(address);
+                return;
+            }
+            Log.w(TAG, "giving up on " + address);
+            session.reconnectAttempts = 0;
+            failUnacked(session);
+        }
+        notifyState(address);
         if (listener != null) {
-            listener.onConnectionFailed();
+            listener.onConnectionFailed(address);
         }
     }
 
-    private void connectionLost() {
-        setState(STATE_LISTEN);
+    private void connectionLost(Connection connection) {
+        String address = connection.address;
+        // Only report if this connection still owns the slot; a replaced connection is not a loss
+        if (!connections.remove(address, connection)) return;
+        fileTransfers.onPeerDisconnected(address);
+        PeerSession session = sessions.get(address);
+        if (session != null && session.state.compareAndSet(STATE_CONNECTED, STATE_NONE)) {
+            if (autoReconnect && session.outgoing) {
+                reconnectSupervisor.schedule(address, 0);
+            } else {
+                // Nobody will bring this link back, so nothing left in the window can arrive
+                failUnacked(session);
+            }
+        }
+        notifyState(address);
         if (listener != null) {
-            listener.onConnectionLost();
+            listener.onConnectionLost(address);
+        }
+    }
+
+    /**
+     * What we know about a peer across reconnects. Each side picks a random token per session
+     * and sends it in its hello; seeing the same remote token again means the peer kept its
+     * state and the session is resumed rather than started over.
+     *
+     * Messages in each direction are numbered from 1 within a session. The receiver delivers
+     * them strictly in order, drops duplicates, and acks the highest number delivered.
+     */
+    private static final class PeerSession {
+        final String address;
+        // STATE_NONE, STATE_CONNECTING or STATE_CONNECTED; changed only by compare-and-set
+        final AtomicInteger state = new AtomicInteger(STATE_NONE);
+        long localToken;
+        long remoteToken;
+        volatile boolean outgoing;
+        volatile int reconnectAttempts;
+        // Sending side: messages not yet acked by the peer, oldest first
+        int nextSeq = 1;
+        final Deque<OutgoingMessage> unacked = new ArrayDeque<>();
+        // Receiving side
+        int lastReceivedSeq;
+        boolean ackPending;
+
+        PeerSession(String address, long localToken) {
+            this.address = address;
+            this.localToken = localToken;
         }
     }
 
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket mmServerSocket;
+    /**
+     * Message payload on the wire: [varint sequence number][message bytes].
+     */
+    private static final class OutgoingMessage implements OutboundWriter.WriteCallback {
+        final byte[] message;
+        final DeliveryCallback callback;
+        int seq;
+        byte[] payload;
+        long transmittedAt;
+        private final AtomicInteger status = new AtomicInteger(Message.STATUS_SENDING);
+
+        OutgoingMessage(int seq, byte[] message, DeliveryCallback callback) {
+            this.message = message;
+            this.callback = callback;
+            setSeq(seq);
+        }
+
+        void setSeq(int seq) {
+            this.seq = seq;
+            payload = new byte[FrameCodec.varintSize(seq) + message.length];
+            int offset = FrameCodec.writeVarint(payload, 0, seq);
+            System.arraycopy(message, 0, payload, offset, message.length);
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            // A failed write stays in the window until it is retransmitted or given up on
+            if (success) {
+                report(Message.STATUS_SENT);
+            }
+        }
 
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+        void report(int newStatus) {
+            // Status only moves forward; a late write completion must not undo a delivery
+            int current;
+            do {
+                current = status.get();
+                if (newStatus <= current) return;
+            } while (!status.compareAndSet(current, newStatus));
+            if (callback != null) {
+                callback.onStatusChanged(newStatus);
+            }
+        }
+    }
+
+    private class AcceptLoop implements Runnable {
+        private final Transport.ServerChannel mmServerSocket;
+        private volatile boolean running = true;
+
+        public AcceptLoop() {
+            Transport.ServerChannel tmp = null;
             try {
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+                tmp = transport.listen();
             } catch (IOException e) {
                 Log.e(TAG, "Socket listen() failed", e);
             }
@@ -192,12 +707,17 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            Log.d(TAG, "Socket accept thread started");
-            setName("AcceptThread");
+            Log.d(TAG, "Socket accept loop started");
+            Thread.currentThread().setName("AcceptLoop");
 
-            BluetoothSocket socket = null;
+            if (mmServerSocket == null) {
+                acceptState.compareAndSet(STATE_LISTEN, STATE_NONE);
+                return;
+            }
+            Transport.Channel socket = null;
 
-            while (state != STATE_CONNECTED) {
+            // Keep accepting after the first peer joins
+            while (running) {
                 try {
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
@@ -205,30 +725,55 @@ public class BluetoothChatService {
                     break;
                 }
 
-                if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
+                if (socket != null && !accept(socket)) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not close unwanted socket", e);
                     }
                 }
             }
-            Log.i(TAG, "AcceptThread finished");
+            // LISTEN -> NONE when the server socket died under us, so start() can listen again
+            if (running && acceptLoop == this) {
+                acceptLoop = null;
+                acceptState.compareAndSet(STATE_LISTEN, STATE_NONE);
+            }
+            Log.i(TAG, "AcceptLoop finished");
+        }
+
+        /**
+         * NONE or CONNECTING -> CONNECTED for the peer behind an incoming socket. An outgoing
+         * attempt to the same peer is abandoned in favour of the socket that is already up.
+         * A peer that is already CONNECTED stays so and the new socket takes over from the old
+         * one: a peer only dials again when it has given up on the link we still think is up.
+         */
+        private boolean accept(Transport.Channel socket) {
+            if (!running) return false;
+            String address = socket.getRemoteAddress();
+            // Our attempt to the same peer, or our link to it, gives way to this socket, so
+            // neither counts
+            int links = linkCount() - (connectTasks.containsKey(address) ? 1 : 0)
+                    - (connections.containsKey(address) ? 1 : 0);
+            if (links >= MAX_PEERS) return false;
+            PeerSession session = sessionFor(address);
+            int state = session.state.get();
+            if (state == STATE_CONNECTED) {
+                Log.d(TAG, "new socket from " + address + " replaces its connection");
+            } else if (!session.state.compareAndSet(state, STATE_CONNECTED)) {
+                return false;
+            }
+            ConnectTask connecting = connectTasks.remove(session.address);
+            if (connecting != null) {
+                connecting.cancel();
+            }
+            connected(socket, session, 0);
+            return true;
         }
 
         public void cancel() {
             Log.d(TAG, "Socket cancel " + this);
+            running = false;
+            if (mmServerSocket == null) return;
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -237,16 +782,16 @@ public class BluetoothChatService {
         }
     }
 
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask implements Runnable {
+        private final Transport.Channel mmSocket;
+        private final String mmAddress;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address) {
+            mmAddress = address;
+            Transport.Channel tmp = null;
 
             try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+                tmp = transport.open(address);
             } catch (IOException e) {
                 Log.e(TAG, "Socket create() failed", e);
             }
@@ -254,31 +799,37 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            Log.i(TAG, "ConnectThread started");
-            setName("ConnectThread");
-
-            bluetoothAdapter.cancelDiscovery();
+            Log.i(TAG, "ConnectTask started");
+            Thread.currentThread().setName("ConnectTask-" + mmAddress);
 
+            long start = System.nanoTime();
             try {
+                if (mmSocket == null) {
+                    throw new IOException("Socket not created");
+                }
                 mmSocket.connect();
-            } catch (IOException e) {
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
+                // Encrypted links are timed once their keys are agreed on
+                if (!encrypt) {
+                    ChatMetrics.get().getConnectTime().record((System.nanoTime() - start) / 1000000);
                 }
-                connectionFailed();
+            } catch (IOException e) {
+                cancel();
+                connectionFailed(this);
                 return;
             }
 
-            synchronized (BluetoothChatService.this) {
-                connectThread = null;
+            // CONNECTING -> CONNECTED, unless cancelled or beaten by an incoming socket meanwhile
+            PeerSession session = sessions.get(mmAddress);
+            if (!connectTasks.remove(mmAddress, this) || session == null
+                    || !session.state.compareAndSet(STATE_CONNECTING, STATE_CONNECTED)) {
+                cancel();
+                return;
             }
-
-            connected(mmSocket, mmDevice);
+            connected(mmSocket, session, start);
         }
 
         public void cancel() {
+            if (mmSocket == null) return;
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -287,14 +838,38 @@ public class BluetoothChatService {
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    /**
+     * One live link: this task reads and dispatches frames, its OutboundWriter sends them.
+     */
+    private class Connection implements Runnable, FrameCodec.FrameListener {
+        private final Transport.Channel mmSocket;
+        private final String address;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        // Room for a full payload plus the tag of a sealed frame
+        private final FrameCodec.Decoder decoder = new FrameCodec.Decoder(FrameCodec.MAX_PAYLOAD_SIZE + FrameCipher.TAG_BYTES);
+        private final OutboundWriter writer;
+        private final MessageCompressor compressor = new MessageCompressor();
+        // Null on an unencrypted link
+        private final KeyPair keyPair;
+        private final long connectStartedAt;
+        private final long createdAt = System.nanoTime();
+        // Set by the reader once the peer's hello has been seen; only touched by the reader
+        private FrameCipher cipher;
+        private final byte[] helloBuffer = new byte[5];
+        private final byte[] ackBuffer = new byte[5];
+        final RttEstimator rtt = new RttEstimator();
+        volatile long lastReceivedAt = System.currentTimeMillis();
+        // Only touched from the timer thread
+        long lastPingAt;
+        private volatile boolean running = true;
 
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
+        public Connection(Transport.Channel socket, String address, KeyPair keyPair, long connectStartedAt) {
+            Log.d(TAG, "create Connection " + address);
             mmSocket = socket;
+            this.address = address;
+            this.keyPair = keyPair;
+            this.connectStartedAt = connectStartedAt;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -307,36 +882,240 @@ public class BluetoothChatService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            writer = new OutboundWriter(mmOutStream);
+            writer.setName("OutboundWriter-" + address);
+            if (keyPair != null) {
+                writer.requireCipher();
+            }
         }
 
         public void run() {
-            Log.i(TAG, "ConnectedThread started");
-            byte[] buffer = new byte[1024];
+            Log.i(TAG, "Connection started");
+            Thread.currentThread().setName("Connection-" + address);
+            writer.start();
+            PooledBuffer readBuffer = bufferPool.acquire(bufferPool.getBufferSize());
+            byte[] buffer = readBuffer.array();
             int bytes;
 
-            while (state == STATE_CONNECTED) {
+            while (running) {
                 try {
-                    bytes = mmInStream.read(buffer);
-                    if (listener != null) {
-                        listener.onMessageReceived(buffer, bytes);
+                    bytes = mmInStream.read(buffer, readBuffer.arrayOffset(), readBuffer.capacity());
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
                     }
+                    lastReceivedAt = System.currentTimeMillis();
+                    ChatMetrics.get().recordBytesIn(bytes);
+                    decoder.feed(buffer, readBuffer.arrayOffset(), bytes, this);
+                    // One ack covers every message that arrived in this read
+                    sendPendingAck();
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    // A frame that fails to decode or open leaves the socket up; the peer
+                    // should see the loss now rather than at its dead link timeout
+                    cancel();
+                    connectionLost(this);
                     break;
                 }
             }
+            readBuffer.release();
+            writer.cancel();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compressor.end();
         }
 
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        /**
+         * Hello payload: [varint capabilities][long session token], followed on an encrypted
+         * link by our X.509 encoded public key.
+         */
+        void sendHello(long sessionToken) {
+            byte[] publicKey = keyPair != null ? keyPair.getPublic().getEncoded() : new byte[0];
+            int capabilities = CAP_DEFLATE | (keyPair != null ? CAP_ENCRYPT : 0);
+            int length = FrameCodec.writeVarint(helloBuffer, 0, capabilities);
+            byte[] hello = ByteBuffer.allocate(length + 8 + publicKey.length)
+                    .put(helloBuffer, 0, length).putLong(sessionToken).put(publicKey).array();
+            writer.enqueue(FrameCodec.TYPE_HELLO, hello, null);
+        }
+
+        private void onHello(byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+            int capabilities = FrameCodec.readVarint(in);
+            boolean hasToken = in.remaining() >= 8;
+            long token = hasToken ? in.getLong() : 0;
+            if (keyPair != null) {
+                // Keys first, so the retransmits below already go out sealed
+                startEncryption(capabilities, in);
+            }
+            if ((capabilities & CAP_DEFLATE) != 0) {
+                writer.setCompressor(compressor);
+            }
+            if (hasToken) {
+                PeerSession session = sessionFor(address);
+                boolean resumed;
+                synchronized (session) {
+                    resumed = session.remoteToken == token;
+                    session.remoteToken = token;
+                    if (!resumed) {
+                        // The peer starts from scratch, in both directions
+                        session.lastReceivedSeq = 0;
+                        session.nextSeq = 1;
+                        for (OutgoingMessage message : session.unacked) {
+                            message.setSeq(session.nextSeq++);
+                        }
+                    }
+                }
+                Log.d(TAG, "hello from " + address + " capabilities " + capabilities
+                        + (resumed ? ", session resumed" : ", new session"));
+                retransmit(session, this);
+            }
+        }
+
+        /**
+         * Agrees on keys with the public key at the end of the peer's hello and lets the writer
+         * send what it has been holding back.
+         */
+        private void startEncryption(int capabilities, ByteBuffer in) throws IOException {
+            if (cipher != null) {
+                throw new IOException("Repeated hello on an encrypted link");
+            }
+            if ((capabilities & CAP_ENCRYPT) == 0 || !in.hasRemaining()) {
+                throw new IOException("Peer does not encrypt its frames");
+            }
+            byte[] peerKey = new byte[in.remaining()];
+            in.get(peerKey);
+            cipher = FrameCipher.agree(keyPair, peerKey);
+            writer.setCipher(cipher);
+
+            long now = System.nanoTime();
+            ChatMetrics.get().getKeyExchangeTime().record((now - createdAt) / 1000000);
+            if (connectStartedAt != 0) {
+                ChatMetrics.get().getInsecureConnectTime().record((now - connectStartedAt) / 1000000);
+            }
+            Log.d(TAG, "link to " + address + " encrypted");
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            // Sealed in place by the peer's writer, so opened in place in the decoder's buffer
+            if (keyPair != null && type != FrameCodec.TYPE_HELLO) {
+                if (cipher == null) {
+                    throw new IOException("Sealed frame before key exchange");
+                }
+                length = cipher.open(type, buffer, offset, length);
+            }
+            if ((type & FrameCodec.FLAG_COMPRESSED) != 0) {
+                try {
+                    length = compressor.inflate(buffer, offset, length);
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed frame", e);
+                }
+                buffer = compressor.getInflateBuffer();
+                offset = 0;
+                type &= FrameCodec.TYPE_MASK;
+            }
+
+            switch (type) {
+                case FrameCodec.TYPE_HELLO:
+                    onHello(buffer, offset, length);
+                    break;
+                case FrameCodec.TYPE_MESSAGE:
+                    onMessage(buffer, offset, length);
+                    break;
+                case FrameCodec.TYPE_PING:
+                    byte[] pong = new byte[length];
+                    System.arraycopy(buffer, offset, pong, 0, length);
+                    writer.enqueue(FrameCodec.TYPE_PONG, pong, null);
+                    break;
+                case FrameCodec.TYPE_PONG:
+                    onPong(buffer, offset, length);
+                    break;
+                case FrameCodec.TYPE_ACK:
+                    PeerSession session = sessions.get(address);
+                    if (session != null) {
+                        onAck(session, FrameCodec.readVarint(ByteBuffer.wrap(buffer, offset, length)));
+                    }
+                    break;
+                case FrameCodec.TYPE_FILE_OFFER:
+                case FrameCodec.TYPE_FILE_ACCEPT:
+                case FrameCodec.TYPE_FILE_CHUNK:
+                case FrameCodec.TYPE_FILE_ACK:
+                case FrameCodec.TYPE_FILE_NACK:
+                case FrameCodec.TYPE_FILE_DECLINE:
+                    fileTransfers.onFrame(address, type, buffer, offset, length);
+                    break;
+                default:
+                    Log.w(TAG, "Ignoring frame of unknown type " + type);
+                    break;
+            }
+        }
+
+        void sendPing(long now) {
+            lastPingAt = now;
+            writer.enqueue(FrameCodec.TYPE_PING, ByteBuffer.allocate(8).putLong(System.nanoTime()).array(), null);
+        }
+
+        private void onPong(byte[] buffer, int offset, int length) throws IOException {
+            if (length != 8) {
+                throw new IOException("Bad pong length " + length);
+            }
+            long sentAt = ByteBuffer.wrap(buffer, offset, length).getLong();
+            // Pings are never resent and each pong echoes its own ping's clock, so this sample
+            // is unambiguous; acks of retransmitted messages are never sampled (Karn's rule)
+            rtt.addSample((System.nanoTime() - sentAt) / 1e6);
+            if (listener != null) {
+                listener.onLinkQualityChanged(address, rtt.getSmoothedRtt(), rtt.getRttVariation());
             }
         }
 
+        private void onMessage(byte[] buffer, int offset, int length) throws IOException {
+            PeerSession session = sessions.get(address);
+            if (session == null) return;
+            ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+            int seq = FrameCodec.readVarint(in);
+            boolean deliver;
+            synchronized (session) {
+                // A peer whose window was abandoned starts a new session, so a gap here only
+                // means an earlier frame is still to be retransmitted
+                deliver = seq == session.lastReceivedSeq + 1;
+                if (deliver) {
+                    session.lastReceivedSeq = seq;
+                }
+                session.ackPending = true;
+            }
+            if (deliver) {
+                ChatMetrics.get().recordMessageIn();
+                if (listener != null) {
+                    // The frame sits in the decoder's ring, which the next read overwrites
+                    listener.onMessageReceived(address, bufferPool.copyOf(buffer, in.position(), in.remaining()));
+                }
+            }
+        }
+
+        private void sendPendingAck() {
+            PeerSession session = sessions.get(address);
+            if (session == null) return;
+            int seq;
+            synchronized (session) {
+                if (!session.ackPending) return;
+                session.ackPending = false;
+                seq = session.lastReceivedSeq;
+            }
+            int length = FrameCodec.writeVarint(ackBuffer, 0, seq);
+            byte[] ack = new byte[length];
+            System.arraycopy(ackBuffer, 0, ack, 0, length);
+            writer.enqueue(FrameCodec.TYPE_ACK, ack, null);
+        }
+
+        public boolean write(byte[] buffer, OutboundWriter.WriteCallback callback) {
+            return writer.enqueue(FrameCodec.TYPE_MESSAGE, buffer, callback);
+        }
+
         public void cancel() {
+            running = false;
+            writer.cancel();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -0,0 +1,84 @@
+package com.chatterbug.app.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size heap buffers for the receive path, recycled through reference counting. Requests
+ * larger than the pooled size get a one-off buffer that is simply dropped on release.
+ *
+ * Buffers are array-backed so they can be handed to code that works on byte arrays.
+ */
+public final class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    // Guarded by itself; an ArrayDeque does not allocate once it has grown to maxPooled
+    private final ArrayDeque<PooledBuffer> free = new ArrayDeque<>();
+    private final AtomicLong misses = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Pool shared by all connections in the process.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Buffers that had to be allocated because the pool was empty or the request too large.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns a buffer with at least size bytes, position 0, limit size and a reference count
+     * of one.
+     */
+    public PooledBuffer acquire(int size) {
+        PooledBuffer buffer = null;
+        if (size <= bufferSize) {
+            synchronized (free) {
+                buffer = free.pollFirst();
+            }
+        }
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = new PooledBuffer(this, ByteBuffer.allocate(Math.max(size, bufferSize)));
+        }
+        buffer.reset(size);
+        return buffer;
+    }
+
+    /**
+     * Copies length bytes from src into a newly acquired buffer.
+     */
+    public PooledBuffer copyOf(byte[] src, int offset, int length) {
+        PooledBuffer buffer = acquire(length);
+        System.arraycopy(src, offset, buffer.array(), buffer.arrayOffset(), length);
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        if (buffer.capacity() != bufferSize) return;
+        synchronized (free) {
+            if (free.size() < maxPooled) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+}
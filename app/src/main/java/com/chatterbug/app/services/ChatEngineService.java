@@ -0,0 +1,666 @@
+package com.chatterbug.app.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import com.chatterbug.app.R;
+import com.chatterbug.app.models.Message;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Foreground service that owns the chat engine, so sockets, send queues and open histories
+ * outlive the activities showing them. A screen rotation or going back to the device list only
+ * unbinds; the link stays up and the next chat screen picks it up without reconnecting.
+ *
+ * Clients start and bind it, then register a Listener. The service stops itself once nothing
+ * is bound and no peer is connected or being connected, or when the notification's disconnect
+ * action is used. A chat screen still bound after a disconnect sees its peer go; the engine
+ * starts again once a client registers, opens a chat or asks to reconnect.
+ *
+ * Started with ACTION_PRECONNECT at app launch, it connects ahead of time to the peer the user
+ * most likely wants to chat with, from RecentPeers. A chat screen for that peer finds the link
+ * already up or on its way; opening any other chat, or no chat within SPECULATIVE_TIMEOUT_MS,
+ * drops it.
+ *
+ * An offered file is put to the chat screen showing the peer that offers it, which asks the
+ * user and answers through answerFileOffer(). With no such screen open it is declined.
+ */
+public class ChatEngineService extends Service implements BluetoothChatService.BluetoothChatListener,
+        FileTransferManager.TransferListener, FileTransferManager.OfferListener {
+    private static final String TAG = "ChatEngineService";
+
+    public static final String ACTION_DISCONNECT = "com.chatterbug.app.action.DISCONNECT";
+    public static final String ACTION_PRECONNECT = "com.chatterbug.app.action.PRECONNECT";
+    private static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+    // Unbound and idle for this long, e.g. not rebound after a rotation, and the service stops
+    private static final long IDLE_STOP_DELAY_MS = 5000;
+    private static final String PREFS = "chat_engine";
+    private static final String KEY_INSECURE_RFCOMM = "insecure_rfcomm";
+    private static final String KEY_NEXT_MESSAGE_ID = "next_message_id";
+    // Message ids are reserved in preferences this many at a time
+    private static final int MESSAGE_ID_BLOCK = 1000;
+    // An unclaimed speculative connection is dropped after this long
+    private static final long SPECULATIVE_TIMEOUT_MS = 60000;
+
+    /**
+     * Same as BluetoothChatListener, except that received messages arrive decoded and already
+     * saved to the peer's history. Called on service threads.
+     */
+    public interface Listener extends FileTransferManager.TransferListener {
+        void onConnectionStateChanged(String address, int state);
+        // index is the message's position in the peer's history, or -1 if it could not be saved
+        void onMessageReceived(String address, Message message, long index);
+        void onConnectionFailed(String address);
+        void onConnectionLost(String address);
+        void onLinkQualityChanged(String address, double smoothedRttMillis, double rttVariationMillis);
+        // Returns true if this client shows the peer and will answer through answerFileOffer()
+        boolean onFileOffered(String address, long transferId, String name, long size);
+    }
+
+    /**
+     * Result of work done on the disk thread, delivered on the main thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    public class LocalBinder extends Binder {
+        public ChatEngineService getService() {
+            return ChatEngineService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Guarded by this
+    private final Map<String, PeerHistory> histories = new HashMap<>();
+    private final ReceivedMessageDecoder messageDecoder = new ReceivedMessageDecoder();
+    private final Runnable stopIfIdle = this::stopIfIdle;
+    private final Runnable dropSpeculative = this::dropSpeculative;
+    // Reads and writes recentPeers, opens histories, saves sent messages and their status,
+    // reserves message ids and saves search indexes
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    // Copies files picked for sending, which can take long enough to hold up a chat message
+    private final ExecutorService copyExecutor = Executors.newSingleThreadExecutor();
+    private Handler mainHandler;
+    private BluetoothChatService chatService;
+    private RecentPeers recentPeers;
+    // Files picked for sending are copied here, since the transfer reads them in the background
+    private File outgoingDir;
+    private boolean foreground;
+    // Next message id to hand out and the end of the blocks reserved so far; guarded by
+    // messageIdLock, and reservations are made one at a time under reserveLock
+    private final Object messageIdLock = new Object();
+    private final Object reserveLock = new Object();
+    private long nextMessageId;
+    private long reservedMessageIds;
+    private boolean reservingMessageIds;
+    // Set by the disconnect action until a client brings the engine back; main thread only
+    private boolean stopped;
+    // Peer connected to ahead of any chat screen asking for it; written on the main thread only
+    private volatile String speculativePeer;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate");
+        mainHandler = new Handler(Looper.getMainLooper());
+        chatService = new BluetoothChatService(this, this, isInsecureMode(this));
+        FileTransferManager fileTransfers = chatService.getFileTransfers();
+        fileTransfers.setReceiveDirectory(new File(getFilesDir(), "received"));
+        fileTransfers.setListener(this);
+        fileTransfers.setOfferListener(this);
+        chatService.start();
+        recentPeers = new RecentPeers(new File(getFilesDir(), "recent_peers"));
+        outgoingDir = new File(getCacheDir(), "outgoing");
+        diskExecutor.execute(() -> {
+            try {
+                recentPeers.load();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read recent peers", e);
+            }
+        });
+        // The first block of message ids, ready before the first send
+        reservingMessageIds = true;
+        diskExecutor.execute(this::reserveMessageIds);
+        copyExecutor.execute(() -> {
+            // Copies left by transfers of an earlier run, which cannot be resumed
+            File[] leftovers = outgoingDir.listFiles();
+            if (leftovers != null) {
+                for (File dir : leftovers) {
+                    deleteOutgoing(dir);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            Log.d(TAG, "disconnect requested");
+            stopForeground(true);
+            foreground = false;
+            stopped = true;
+            chatService.stop();
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        restart();
+        if (intent != null && ACTION_PRECONNECT.equals(intent.getAction())) {
+            preconnect();
+            // Nobody may be bound yet, and there may be nobody to connect to
+            if (listeners.isEmpty()) {
+                scheduleIdleCheck();
+            }
+        }
+        if (!foreground) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                startForeground(NOTIFICATION_ID, buildNotification(),
+                        ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+            } else {
+                startForeground(NOTIFICATION_ID, buildNotification());
+            }
+            foreground = true;
+        }
+        // Sockets do not survive the process, so there is nothing to restart into
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        foreground = false;
+        chatService.stop();
+        mainHandler.removeCallbacksAndMessages(null);
+        // Closed behind the messages and statuses still waiting to be saved
+        diskExecutor.execute(() -> {
+            synchronized (this) {
+                for (PeerHistory history : histories.values()) {
+                    history.close();
+                }
+                histories.clear();
+            }
+        });
+        diskExecutor.shutdown();
+        copyExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Whether the engine connects over insecure RFCOMM and encrypts links itself. Read when
+     * the service is created, so a change applies from the next start.
+     */
+    public static boolean isInsecureMode(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).getBoolean(KEY_INSECURE_RFCOMM, false);
+    }
+
+    public static void setInsecureMode(Context context, boolean insecure) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_INSECURE_RFCOMM, insecure).apply();
+    }
+
+    public BluetoothChatService getChatService() {
+        return chatService;
+    }
+
+    /**
+     * Listens again after the disconnect action stopped the engine under a bound client, and
+     * starts the service again so it goes back to the foreground.
+     */
+    private void restart() {
+        if (!stopped) return;
+        Log.d(TAG, "restarting after disconnect");
+        stopped = false;
+        chatService.start();
+        if (!foreground) {
+            startService(new Intent(this, ChatEngineService.class));
+        }
+    }
+
+    /**
+     * Retries a dropped peer right away. Call on the main thread.
+     */
+    public void reconnectNow(String address) {
+        restart();
+        chatService.reconnectNow(address);
+    }
+
+    /**
+     * Connects to the peer a chat screen is about to show and remembers it for the next
+     * launch. A speculative connection to this peer is kept and becomes the chat's; one to
+     * another peer is dropped. Call on the main thread.
+     */
+    public void openChat(String address) {
+        restart();
+        if (speculativePeer != null) {
+            if (!speculativePeer.equals(address)) {
+                Log.d(TAG, "discarding speculative connection to " + speculativePeer);
+                chatService.disconnect(speculativePeer);
+            } else {
+                Log.d(TAG, "speculative connection to " + address + " claimed");
+            }
+            claimSpeculative();
+        }
+        // Does nothing if the link is already up or being set up
+        chatService.connect(address);
+
+        final long now = System.currentTimeMillis();
+        diskExecutor.execute(() -> {
+            recentPeers.record(address, now);
+            try {
+                recentPeers.save();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save recent peers", e);
+            }
+        });
+    }
+
+    /**
+     * Starts a connect to the most likely peer, unless it is already connected or connecting.
+     * Looked up on the disk thread, behind the initial load.
+     */
+    private void preconnect() {
+        diskExecutor.execute(() -> {
+            final String address = recentPeers.getMostLikely(System.currentTimeMillis());
+            if (address == null) return;
+            mainHandler.post(() -> {
+                // Stopped, already speculating, or a chat screen has taken over meanwhile
+                if (!foreground || speculativePeer != null || !listeners.isEmpty()) return;
+                int state = chatService.getState(address);
+                if (state == BluetoothChatService.STATE_CONNECTING || state == BluetoothChatService.STATE_CONNECTED) {
+                    return;
+                }
+                Log.d(TAG, "connecting ahead of time to " + address);
+                speculativePeer = address;
+                mainHandler.postDelayed(dropSpeculative, SPECULATIVE_TIMEOUT_MS);
+                chatService.connect(address);
+            });
+        });
+    }
+
+    private void claimSpeculative() {
+        speculativePeer = null;
+        mainHandler.removeCallbacks(dropSpeculative);
+    }
+
+    /**
+     * Gives up on a speculative connection nobody claimed, without retrying it.
+     */
+    private void dropSpeculative() {
+        if (speculativePeer == null) return;
+        Log.d(TAG, "speculative connection to " + speculativePeer + " unused, dropping it");
+        String address = speculativePeer;
+        claimSpeculative();
+        chatService.disconnect(address);
+    }
+
+    /**
+     * Sends the document at uri to a peer. It is copied to the cache in the background first;
+     * a failure to read it is reported through onTransferFailed with a transfer id of -1.
+     */
+    public void sendFile(String address, Uri uri) {
+        copyExecutor.execute(() -> {
+            File file = null;
+            try {
+                // One directory per file, so the copy keeps the name the peer will see
+                File dir = new File(outgoingDir, Long.toHexString(System.nanoTime()));
+                if (!dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                file = new File(dir, displayName(uri));
+                try (InputStream in = getContentResolver().openInputStream(uri);
+                     OutputStream out = new FileOutputStream(file)) {
+                    if (in == null) throw new IOException("Cannot open " + uri);
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                chatService.sendFile(address, file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not send " + uri, e);
+                if (file != null) {
+                    deleteOutgoing(file.getParentFile());
+                }
+                onTransferFailed(address, -1, false);
+            }
+        });
+    }
+
+    private String displayName(Uri uri) {
+        String name = null;
+        try (Cursor cursor = getContentResolver().query(uri,
+                new String[] {OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                name = cursor.getString(0);
+            }
+        }
+        if (name != null) {
+            name = new File(name).getName();
+        }
+        return name == null || name.isEmpty() || name.equals(".") || name.equals("..") ? "file" : name;
+    }
+
+    private static void deleteOutgoing(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Id for a message this device is about to send, unique among all it ever sends: the peer
+     * drops a message whose id it has just received. Ids count up from a counter kept in
+     * preferences, which starts from the clock the first time so ids sent before the app's
+     * data was cleared are not reused either. The next block is reserved on the disk thread
+     * once half of the current one is used, so this only waits for the disk if sends outrun it.
+     */
+    public long nextMessageId() {
+        synchronized (messageIdLock) {
+            if (nextMessageId < reservedMessageIds) {
+                if (!reservingMessageIds && reservedMessageIds - nextMessageId <= MESSAGE_ID_BLOCK / 2) {
+                    reservingMessageIds = true;
+                    diskExecutor.execute(this::reserveMessageIds);
+                }
+                return nextMessageId++;
+            }
+        }
+        reserveMessageIds();
+        return nextMessageId();
+    }
+
+    /**
+     * Saves the end of the next block of ids before any of them is used, so a crash never
+     * hands out an id twice.
+     */
+    private void reserveMessageIds() {
+        synchronized (reserveLock) {
+            SharedPreferences prefs = getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+            long end;
+            synchronized (messageIdLock) {
+                if (reservedMessageIds == 0) {
+                    nextMessageId = prefs.getLong(KEY_NEXT_MESSAGE_ID, System.currentTimeMillis());
+                }
+                end = Math.max(reservedMessageIds, nextMessageId) + MESSAGE_ID_BLOCK;
+            }
+            if (!prefs.edit().putLong(KEY_NEXT_MESSAGE_ID, end).commit()) {
+                Log.w(TAG, "Could not save message id counter");
+            }
+            synchronized (messageIdLock) {
+                reservedMessageIds = end;
+                reservingMessageIds = false;
+            }
+        }
+    }
+
+    /**
+     * Saves a message this device sends to the peer's history on the disk thread and passes its
+     * index, or -1 if it could not be saved, to the callback.
+     */
+    public void appendSent(String address, Message message, Callback<Long> callback) {
+        diskExecutor.execute(() -> {
+            long index = getHistory(address).append(message);
+            mainHandler.post(() -> callback.onResult(index));
+        });
+    }
+
+    /**
+     * Saves a sent message's new status on the disk thread.
+     */
+    public void setMessageStatus(String address, long index, int status) {
+        diskExecutor.execute(() -> getHistory(address).setStatus(index, status));
+    }
+
+    /**
+     * Opens the peer's history on the disk thread, unless it is open already, and passes it to
+     * the callback.
+     */
+    public void openHistory(String address, Callback<PeerHistory> callback) {
+        diskExecutor.execute(() -> {
+            PeerHistory history = getHistory(address);
+            mainHandler.post(() -> callback.onResult(history));
+        });
+    }
+
+    /**
+     * The peer's history, opened on first use and kept open for the life of the service.
+     * Opening reads and may repair the log, so call off the main thread.
+     */
+    public synchronized PeerHistory getHistory(String address) {
+        PeerHistory history = histories.get(address);
+        if (history == null) {
+            history = PeerHistory.open(new File(getFilesDir(), "history"), address, diskExecutor);
+            histories.put(address, history);
+        }
+        return history;
+    }
+
+    /**
+     * Call on the main thread.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        mainHandler.removeCallbacks(stopIfIdle);
+        restart();
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        scheduleIdleCheck();
+    }
+
+    private void scheduleIdleCheck() {
+        mainHandler.removeCallbacks(stopIfIdle);
+        mainHandler.postDelayed(stopIfIdle, IDLE_STOP_DELAY_MS);
+    }
+
+    private void stopIfIdle() {
+        if (!listeners.isEmpty() || isBusy()) return;
+        Log.d(TAG, "idle, stopping");
+        stopForeground(true);
+        foreground = false;
+        stopSelf();
+    }
+
+    private boolean isBusy() {
+        int state = chatService.getState();
+        if (state == BluetoothChatService.STATE_CONNECTED || state == BluetoothChatService.STATE_CONNECTING) {
+            return true;
+        }
+        // A peer waiting out its reconnect backoff still counts
+        List<String> addresses;
+        synchronized (this) {
+            addresses = new ArrayList<>(histories.keySet());
+        }
+        for (String address : addresses) {
+            if (chatService.getState(address) == BluetoothChatService.STATE_CONNECTING) return true;
+        }
+        return false;
+    }
+
+    private Notification buildNotification() {
+        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.connection_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        int immutable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                getPackageManager().getLaunchIntentForPackage(getPackageName()), immutable);
+        PendingIntent disconnect = PendingIntent.getService(this, 0,
+                new Intent(this, ChatEngineService.class).setAction(ACTION_DISCONNECT), immutable);
+
+        int peers = chatService.getConnectedPeers().size();
+        String text = peers > 0
+                ? getResources().getQuantityString(R.plurals.connected_peers, peers, peers)
+                : getString(R.string.waiting_for_peers);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_bluetooth_connected)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(open)
+                .addAction(0, getString(R.string.disconnect), disconnect)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    @Override
+    public void onConnectionStateChanged(String address, int state) {
+        for (Listener listener : listeners) {
+            listener.onConnectionStateChanged(address, state);
+        }
+        mainHandler.post(() -> {
+            if (foreground) {
+                NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+                manager.notify(NOTIFICATION_ID, buildNotification());
+            }
+            if (listeners.isEmpty()) {
+                scheduleIdleCheck();
+            }
+        });
+    }
+
+    @Override
+    public void onMessageReceived(String address, PooledBuffer buffer) {
+        Message message;
+        try {
+            message = messageDecoder.decode(address, buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping undecodable message from " + address, e);
+            return;
+        }
+        if (message.getType() != Message.TYPE_TEXT) {
+            Log.w(TAG, "Ignoring message of unknown type " + message.getType() + " from " + address);
+            return;
+        }
+        message.setReceivedAt(System.nanoTime());
+        // The peer is talking to us over the link, so it is no longer ours to drop
+        if (address.equals(speculativePeer)) {
+            mainHandler.post(() -> {
+                if (address.equals(speculativePeer)) {
+                    claimSpeculative();
+                }
+            });
+        }
+        // Saved even when no screen is showing this peer
+        long index = getHistory(address).appendReceived(message);
+        if (index == PeerHistory.DUPLICATE) {
+            Log.d(TAG, "Dropping message " + message.getId() + " from " + address + ", already received");
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.onMessageReceived(address, message, index);
+        }
+    }
+
+    @Override
+    public void onConnectionFailed(String address) {
+        mainHandler.post(() -> dropSpeculative(address));
+        for (Listener listener : listeners) {
+            listener.onConnectionFailed(address);
+        }
+    }
+
+    @Override
+    public void onConnectionLost(String address) {
+        // Not worth reconnecting to a peer nobody asked for yet
+        mainHandler.post(() -> dropSpeculative(address));
+        for (Listener listener : listeners) {
+            listener.onConnectionLost(address);
+        }
+    }
+
+    private void dropSpeculative(String address) {
+        if (address.equals(speculativePeer)) {
+            dropSpeculative();
+        }
+    }
+
+    @Override
+    public void onLinkQualityChanged(String address, double smoothedRttMillis, double rttVariationMillis) {
+        for (Listener listener : listeners) {
+            listener.onLinkQualityChanged(address, smoothedRttMillis, rttVariationMillis);
+        }
+    }
+
+    @Override
+    public void onTransferProgress(String address, long transferId, long bytes, long total, boolean incoming) {
+        for (Listener listener : listeners) {
+            listener.onTransferProgress(address, transferId, bytes, total, incoming);
+        }
+    }
+
+    @Override
+    public void onTransferOffered(String address, long transferId, String name, long size) {
+        for (Listener listener : listeners) {
+            if (listener.onFileOffered(address, transferId, name, size)) return;
+        }
+        Log.d(TAG, "Declining " + name + " from " + address + ", no chat screen to ask");
+        answerFileOffer(address, transferId, false);
+    }
+
+    /**
+     * Takes or turns down a file passed to a client's onFileOffered().
+     */
+    public void answerFileOffer(String address, long transferId, boolean accept) {
+        chatService.getFileTransfers().answerOffer(address, transferId, accept);
+    }
+
+    @Override
+    public void onTransferComplete(String address, long transferId, File file, boolean incoming) {
+        if (!incoming && outgoingDir.equals(file.getParentFile().getParentFile())) {
+            copyExecutor.execute(() -> deleteOutgoing(file.getParentFile()));
+        }
+        for (Listener listener : listeners) {
+            listener.onTransferComplete(address, transferId, file, incoming);
+        }
+    }
+
+    @Override
+    public void onTransferFailed(String address, long transferId, boolean incoming) {
+        for (Listener listener : listeners) {
+            listener.onTransferFailed(address, transferId, incoming);
+        }
+    }
+}
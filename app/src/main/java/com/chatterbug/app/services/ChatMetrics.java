@@ -0,0 +1,132 @@
+package com.chatterbug.app.services;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters and latency histograms for the chat pipeline. Everything here is
+ * updated with plain atomics from the connection threads, so recording costs about as much as
+ * the Log.d calls it sits next to.
+ */
+public final class ChatMetrics {
+    private static final ChatMetrics INSTANCE = new ChatMetrics();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+
+    // Connect() on the transport until the socket is up, on a secure (paired) link
+    private final Histogram connectTime = new Histogram("connect time, secure", "ms");
+    // Connect() on an insecure link until the key exchange is done and frames can flow
+    private final Histogram insecureConnectTime = new Histogram("connect time, insecure + key exchange", "ms");
+    // From sending our hello until the peer's key has been agreed on, both directions
+    private final Histogram keyExchangeTime = new Histogram("key exchange", "ms");
+    // From enqueue on the writer until the batch holding the frame has been flushed
+    private final Histogram sendLatency = new Histogram("send to socket", "us");
+    // From onMessageReceived until the message is first bound to a view
+    private final Histogram renderLatency = new Histogram("receive to render", "us");
+    // Writer queue depth seen by each enqueue
+    private final Histogram queueDepth = new Histogram("send queue depth", "frames");
+
+    private ChatMetrics() {
+    }
+
+    public static ChatMetrics get() {
+        return INSTANCE;
+    }
+
+    public void recordBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void recordMessageIn() {
+        messagesIn.incrementAndGet();
+    }
+
+    public void recordMessageOut() {
+        messagesOut.incrementAndGet();
+    }
+
+    public Histogram getConnectTime() {
+        return connectTime;
+    }
+
+    public Histogram getInsecureConnectTime() {
+        return insecureConnectTime;
+    }
+
+    public Histogram getKeyExchangeTime() {
+        return keyExchangeTime;
+    }
+
+    public Histogram getSendLatency() {
+        return sendLatency;
+    }
+
+    public Histogram getRenderLatency() {
+        return renderLatency;
+    }
+
+    public Histogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    private List<Histogram> histograms() {
+        return Arrays.asList(connectTime, insecureConnectTime, keyExchangeTime, sendLatency, renderLatency, queueDepth);
+    }
+
+    public void reset() {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        messagesIn.set(0);
+        messagesOut.set(0);
+        for (Histogram histogram : histograms()) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.printf(Locale.US, "uptime      %d s%n", (System.currentTimeMillis() - startedAt) / 1000);
+        out.printf(Locale.US, "bytes       in %d  out %d%n", bytesIn.get(), bytesOut.get());
+        out.printf(Locale.US, "messages    in %d  out %d%n", messagesIn.get(), messagesOut.get());
+        out.printf(Locale.US, "buffers     pool misses %d%n", BufferPool.shared().getMisses());
+        for (Histogram h : histograms()) {
+            out.println();
+            out.printf(Locale.US, "%s (%s)%n", h.getName(), h.getUnit());
+            out.printf(Locale.US, "  count %d  mean %.1f  max %d%n", h.getCount(), h.getMean(), h.getMax());
+            out.printf(Locale.US, "  p50 %d  p90 %d  p99 %d  p99.9 %d%n", h.getPercentile(50),
+                    h.getPercentile(90), h.getPercentile(99), h.getPercentile(99.9));
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        dump(writer);
+        return writer.toString();
+    }
+
+    public void dumpToFile(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            dump(writer);
+        }
+    }
+}
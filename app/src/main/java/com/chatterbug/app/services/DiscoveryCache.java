@@ -0,0 +1,158 @@
+package com.chatterbug.app.services;
+
+import com.chatterbug.app.models.BluetoothDeviceModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices found by recent scans, kept on disk so the device list can be shown at once on the
+ * next launch. An entry is trusted for ttl milliseconds after the scan that last saw it. A new
+ * inquiry is only needed once the last complete scan or any cached entry is older than that.
+ *
+ * File layout: [int version][long last inquiry][int count], then per device
+ * [UTF address][UTF name][boolean paired][int rssi][long last seen].
+ */
+public class DiscoveryCache {
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final long ttl;
+    private final Map<String, BluetoothDeviceModel> devices = new LinkedHashMap<>();
+    private long lastInquiryAt;
+
+    public DiscoveryCache(File file) {
+        this(file, DEFAULT_TTL_MS);
+    }
+
+    public DiscoveryCache(File file, long ttl) {
+        this.file = file;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Reads the cache file and merges it into what is already cached. Devices put since the
+     * cache was created are newer than the file, so an entry only replaces one last seen
+     * earlier. A missing or unreadable file adds nothing.
+     */
+    public void load() throws IOException {
+        List<BluetoothDeviceModel> loaded = new ArrayList<>();
+        long inquiry;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) return;
+            inquiry = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                BluetoothDeviceModel device = new BluetoothDeviceModel(in.readUTF(), address, in.readBoolean(), in.readInt());
+                device.setLastSeen(in.readLong());
+                loaded.add(device);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+            return;
+        }
+
+        synchronized (this) {
+            for (BluetoothDeviceModel device : loaded) {
+                BluetoothDeviceModel current = devices.get(device.getAddress());
+                if (current == null || current.getLastSeen() < device.getLastSeen()) {
+                    devices.put(device.getAddress(), device);
+                }
+            }
+            lastInquiryAt = Math.max(lastInquiryAt, inquiry);
+        }
+    }
+
+    /**
+     * Writes the cache, dropping expired entries. The file is replaced atomically so a crash
+     * mid-write keeps the previous contents.
+     */
+    public void save(long now) throws IOException {
+        List<BluetoothDeviceModel> snapshot;
+        long inquiry;
+        synchronized (this) {
+            prune(now);
+            snapshot = new ArrayList<>(devices.values());
+            inquiry = lastInquiryAt;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeLong(inquiry);
+            out.writeInt(snapshot.size());
+            for (BluetoothDeviceModel device : snapshot) {
+                out.writeUTF(device.getAddress());
+                out.writeUTF(device.getName() != null ? device.getName() : "");
+                out.writeBoolean(device.isPaired());
+                out.writeInt(device.getRssi());
+                out.writeLong(device.getLastSeen());
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Records a device found by a scan at the given time.
+     */
+    public synchronized void put(BluetoothDeviceModel device, long now) {
+        BluetoothDeviceModel copy = new BluetoothDeviceModel(device.getName(), device.getAddress(),
+                device.isPaired(), device.getRssi());
+        copy.setLastSeen(now);
+        devices.put(device.getAddress(), copy);
+    }
+
+    public synchronized void markInquiryComplete(long now) {
+        lastInquiryAt = now;
+    }
+
+    /**
+     * Devices seen within the TTL.
+     */
+    public synchronized List<BluetoothDeviceModel> getFreshDevices(long now) {
+        List<BluetoothDeviceModel> fresh = new ArrayList<>();
+        for (BluetoothDeviceModel device : devices.values()) {
+            if (now - device.getLastSeen() < ttl) {
+                fresh.add(device);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * True once a real inquiry is due: the last complete scan has expired, or so has an entry.
+     */
+    public synchronized boolean needsInquiry(long now) {
+        if (lastInquiryAt == 0 || now - lastInquiryAt >= ttl) return true;
+        for (BluetoothDeviceModel device : devices.values()) {
+            if (now - device.getLastSeen() >= ttl) return true;
+        }
+        return false;
+    }
+
+    private void prune(long now) {
+        Iterator<BluetoothDeviceModel> it = devices.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getLastSeen() >= ttl) {
+                it.remove();
+            }
+        }
+    }
+}
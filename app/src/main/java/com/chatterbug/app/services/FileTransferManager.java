@@ -0,0 +1,662 @@
+package com.chatterbug.app.services;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Streams files over the chat link next to text messages.
+ *
+ * The sender offers a file, the receiver answers with the offset it already holds (non-zero
+ * when resuming), and the sender streams CHUNK_SIZE chunks from that offset. Each chunk carries
+ * a CRC32. At most WINDOW_CHUNKS chunks are unacknowledged at a time, which keeps the pipe
+ * full; chunks go on the writer's bulk channel, so they do not hold up chat messages. The
+ * receiver only writes chunks in order and acknowledges cumulatively; a bad checksum is
+ * answered with a NACK and the sender goes back to that offset.
+ *
+ * An offer larger than the maximum incoming size is answered with DECLINE straight away. Any
+ * other is passed to the offer listener and stays open, with the sender waiting, until
+ * answerOffer() accepts or declines it. A finished file never replaces an existing one: it is
+ * saved under the offered name with a number added if that is taken.
+ *
+ * Partial downloads are kept on disk as transfer-&lt;peer&gt;-&lt;id&gt;.part, so a transfer
+ * interrupted by a lost connection picks up from the last acknowledged offset when the peer
+ * reconnects. Its file is closed while the peer is away.
+ *
+ * Either side gives up on a transfer with DECLINE: the receiver when it cannot write or finish
+ * the file, the sender when it fails, is cancelled, or sees no progress for MAX_ACK_TIMEOUTS
+ * acknowledgement timeouts in a row. The receiver deletes the partial file either way.
+ *
+ * Frame payloads:
+ *   OFFER  [long id][long size][short name length][UTF-8 name]
+ *   ACCEPT [long id][long offset]
+ *   CHUNK  [long id][long offset][int crc32][data]
+ *   ACK    [long id][long offset]   everything below offset was received
+ *   NACK   [long id][long offset]   resend from offset
+ *   DECLINE [long id][long 0]        the file is not wanted, or either side gave up on it
+ */
+public class FileTransferManager {
+    private static final String TAG = "FileTransferManager";
+
+    // Small enough that a chunk ahead of a chat message on the link delays it only briefly
+    public static final int CHUNK_SIZE = 4 * 1024;
+    private static final int CHUNK_HEADER = 8 + 8 + 4;
+    private static final int WINDOW_CHUNKS = 16;
+    private static final long ACK_TIMEOUT_MS = 10000;
+    // Timeouts in a row without the receiver acknowledging anything new before the sender fails
+    private static final int MAX_ACK_TIMEOUTS = 5;
+    private static final long QUEUE_FULL_BACKOFF_MS = 20;
+    public static final long DEFAULT_MAX_INCOMING_BYTES = 64L * 1024 * 1024;
+
+    public interface FrameSender {
+        boolean sendFrame(String address, int type, byte[] payload);
+    }
+
+    public interface TransferListener {
+        void onTransferProgress(String address, long transferId, long bytes, long total, boolean incoming);
+        void onTransferComplete(String address, long transferId, File file, boolean incoming);
+        void onTransferFailed(String address, long transferId, boolean incoming);
+    }
+
+    /**
+     * Told about an offered file on the connection's reader thread, once per transfer; a resume
+     * after reconnecting is not asked about again. Must lead to an answerOffer() call for it,
+     * from any thread, possibly from within this one.
+     */
+    public interface OfferListener {
+        void onTransferOffered(String address, long transferId, String name, long size);
+    }
+
+    private final FrameSender sender;
+    private final Random random = new Random();
+    private final Map<Long, OutgoingTransfer> outgoing = new ConcurrentHashMap<>();
+    // Keyed by peer address and transfer id, since ids are only unique per sender
+    private final Map<String, IncomingTransfer> incoming = new ConcurrentHashMap<>();
+    // Offers waiting for answerOffer(), same keys; nothing is on disk for them yet
+    private final Map<String, IncomingTransfer> offered = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> connectedPeers = new ConcurrentHashMap<>();
+    private volatile File receiveDir;
+    private volatile TransferListener listener;
+    private volatile OfferListener offerListener;
+    private volatile long maxIncomingBytes = DEFAULT_MAX_INCOMING_BYTES;
+
+    public FileTransferManager(FrameSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Incoming offers are declined until a directory is set.
+     */
+    public void setReceiveDirectory(File receiveDir) {
+        this.receiveDir = receiveDir;
+    }
+
+    /**
+     * Incoming offers are declined while no offer listener is set.
+     */
+    public void setOfferListener(OfferListener offerListener) {
+        this.offerListener = offerListener;
+    }
+
+    public void setMaxIncomingSize(long maxIncomingBytes) {
+        this.maxIncomingBytes = maxIncomingBytes;
+    }
+
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    public long sendFile(String address, File file) throws IOException {
+        long id = random.nextLong();
+        OutgoingTransfer transfer = new OutgoingTransfer(id, address, file);
+        outgoing.put(id, transfer);
+        transfer.start();
+        return id;
+    }
+
+    public void cancel(long transferId) {
+        OutgoingTransfer transfer = outgoing.remove(transferId);
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    public void onPeerConnected(String address) {
+        connectedPeers.put(address, Boolean.TRUE);
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            if (transfer.address.equals(address)) {
+                transfer.onConnected();
+            }
+        }
+    }
+
+    public void onPeerDisconnected(String address) {
+        connectedPeers.remove(address);
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            if (transfer.address.equals(address)) {
+                transfer.onDisconnected();
+            }
+        }
+        // Kept for a resume, but without holding the file open meanwhile
+        for (IncomingTransfer transfer : incoming.values()) {
+            if (transfer.address.equals(address)) {
+                transfer.close();
+            }
+        }
+    }
+
+    public void shutdown() {
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            transfer.cancel();
+        }
+        outgoing.clear();
+        offered.clear();
+        for (IncomingTransfer transfer : incoming.values()) {
+            transfer.close();
+        }
+        incoming.clear();
+    }
+
+    /**
+     * Handles a file transfer frame on the connection's reader thread. The buffer is only valid
+     * for the duration of the call.
+     */
+    public void onFrame(String address, int type, byte[] buffer, int offset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+        try {
+            long id = in.getLong();
+            switch (type) {
+                case FrameCodec.TYPE_FILE_OFFER: {
+                    long size = in.getLong();
+                    byte[] name = new byte[in.getShort() & 0xFFFF];
+                    in.get(name);
+                    onOffer(address, id, size, new String(name, StandardCharsets.UTF_8));
+                    break;
+                }
+                case FrameCodec.TYPE_FILE_CHUNK: {
+                    IncomingTransfer transfer = incoming.get(key(address, id));
+                    if (transfer != null) {
+                        long chunkOffset = in.getLong();
+                        int crc = in.getInt();
+                        transfer.onChunk(chunkOffset, crc, buffer, in.position(), in.remaining());
+                    }
+                    break;
+                }
+                case FrameCodec.TYPE_FILE_ACCEPT:
+                case FrameCodec.TYPE_FILE_ACK:
+                case FrameCodec.TYPE_FILE_NACK: {
+                    OutgoingTransfer transfer = outgoing.get(id);
+                    // Only the peer the file was offered to can steer its transfer
+                    if (transfer != null && transfer.address.equals(address)) {
+                        transfer.onControl(type, in.getLong());
+                    }
+                    break;
+                }
+                case FrameCodec.TYPE_FILE_DECLINE: {
+                    OutgoingTransfer transfer = outgoing.get(id);
+                    if (transfer != null && transfer.address.equals(address)) {
+                        transfer.onControl(type, in.getLong());
+                        break;
+                    }
+                    // The sender gave up on a file it was sending us
+                    String key = key(address, id);
+                    offered.remove(key);
+                    IncomingTransfer receiving = incoming.get(key);
+                    if (receiving != null) {
+                        Log.d(TAG, "Transfer " + id + " abandoned by " + address);
+                        receiving.abort(false);
+                    }
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // Covers truncated payloads from a misbehaving peer
+            Log.e(TAG, "Malformed file transfer frame", e);
+        }
+    }
+
+    private void onOffer(String address, long id, long size, String name) {
+        File dir = receiveDir;
+        if (dir == null) {
+            Log.w(TAG, "Declining file offer, no receive directory");
+            sendControl(address, FrameCodec.TYPE_FILE_DECLINE, id, 0);
+            return;
+        }
+
+        String key = key(address, id);
+        IncomingTransfer transfer = incoming.get(key);
+        if (transfer != null) {
+            // An offer for a known transfer is a resume after reconnecting
+            start(transfer);
+            return;
+        }
+        // Offered again while still waiting for an answer
+        if (offered.containsKey(key)) return;
+
+        // Strip any path the sender put in the name
+        String fileName = new File(name).getName();
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            Log.w(TAG, "Declining file offer with bad name \"" + name + "\"");
+            sendControl(address, FrameCodec.TYPE_FILE_DECLINE, id, 0);
+            return;
+        }
+        if (size < 0 || size > maxIncomingBytes) {
+            Log.w(TAG, "Declining file offer of " + size + " bytes");
+            sendControl(address, FrameCodec.TYPE_FILE_DECLINE, id, 0);
+            return;
+        }
+        transfer = new IncomingTransfer(id, address, dir, size, fileName);
+        OfferListener l = offerListener;
+        if (l == null) {
+            decline(transfer);
+            return;
+        }
+        offered.put(key, transfer);
+        l.onTransferOffered(address, id, fileName, size);
+    }
+
+    /**
+     * Takes or turns down a file passed to the offer listener. Does nothing if the offer was
+     * answered already or the sender has given up on it.
+     */
+    public void answerOffer(String address, long transferId, boolean accept) {
+        String key = key(address, transferId);
+        IncomingTransfer transfer = offered.remove(key);
+        if (transfer == null) return;
+        if (!accept) {
+            decline(transfer);
+            return;
+        }
+        incoming.put(key, transfer);
+        start(transfer);
+    }
+
+    private void decline(IncomingTransfer transfer) {
+        Log.d(TAG, "File offer " + transfer.name + " declined");
+        sendControl(transfer.address, FrameCodec.TYPE_FILE_DECLINE, transfer.id, 0);
+        // Left by an earlier run that accepted the same transfer
+        transfer.partFile.delete();
+    }
+
+    /**
+     * Opens an accepted transfer's partial file and tells the sender where to go on from.
+     */
+    private void start(IncomingTransfer transfer) {
+        long offset;
+        try {
+            offset = transfer.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open file for transfer " + transfer.id, e);
+            transfer.abort(true);
+            return;
+        }
+        if (offset < transfer.size) {
+            sendControl(transfer.address, FrameCodec.TYPE_FILE_ACCEPT, transfer.id, offset);
+        } else if (transfer.finish()) {
+            // Everything arrived before the connection dropped, only the answer was lost
+            sendControl(transfer.address, FrameCodec.TYPE_FILE_ACCEPT, transfer.id, offset);
+        }
+    }
+
+    private static String key(String address, long id) {
+        return address + '/' + Long.toHexString(id);
+    }
+
+    /**
+     * The name in dir, or the first of "name (1)", "name (2)"... that does not exist yet.
+     */
+    private static File uniqueFile(File dir, String name) {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        File file = new File(dir, name);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private void sendControl(String address, int type, long id, long offset) {
+        byte[] payload = ByteBuffer.allocate(16).putLong(id).putLong(offset).array();
+        if (!sender.sendFrame(address, type, payload)) {
+            Log.w(TAG, "Could not send transfer control frame " + type);
+        }
+    }
+
+    private class IncomingTransfer {
+        final long id;
+        final String address;
+        final long size;
+        final File dir;
+        final String name;
+        final File partFile;
+        final CRC32 crc = new CRC32();
+        // Guarded by this; null while the peer is away
+        RandomAccessFile file;
+        FileChannel channel;
+        long expected;
+        boolean done;
+
+        IncomingTransfer(long id, String address, File dir, long size, String name) {
+            this.id = id;
+            this.address = address;
+            this.size = size;
+            this.dir = dir;
+            this.name = name;
+            partFile = new File(dir, "transfer-" + address.replace(':', '_') + "-" + Long.toHexString(id) + ".part");
+        }
+
+        /**
+         * Opens the partial file unless it is open already and returns the offset to go on from.
+         */
+        synchronized long open() throws IOException {
+            if (channel != null) return expected;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            file = new RandomAccessFile(partFile, "rw");
+            channel = file.getChannel();
+            expected = Math.min(channel.size(), size);
+            channel.truncate(expected);
+            return expected;
+        }
+
+        synchronized void onChunk(long offset, int checksum, byte[] buffer, int position, int length) {
+            if (done || channel == null) return;
+            if (offset != expected) {
+                // Out of order after a go-back; the sender will catch up from our ack
+                return;
+            }
+            crc.reset();
+            crc.update(buffer, position, length);
+            if ((int) crc.getValue() != checksum) {
+                sendControl(address, FrameCodec.TYPE_FILE_NACK, id, expected);
+                return;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(buffer, position, length);
+                long writeAt = offset;
+                while (data.hasRemaining()) {
+                    writeAt += channel.write(data, writeAt);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Write failed for transfer " + id, e);
+                abort(true);
+                return;
+            }
+            expected += length;
+
+            TransferListener l = listener;
+            if (l != null) {
+                l.onTransferProgress(address, id, expected, size, true);
+            }
+            // The last chunk is only acknowledged once the file is in place
+            if (expected < size || finish()) {
+                sendControl(address, FrameCodec.TYPE_FILE_ACK, id, expected);
+            }
+        }
+
+        /**
+         * Moves the complete file to its place. On failure the transfer is aborted and false
+         * returned.
+         */
+        synchronized boolean finish() {
+            if (done) return false;
+            File target = null;
+            try {
+                channel.force(false);
+                close();
+                // Other transfers may be finishing into the same directory
+                synchronized (FileTransferManager.this) {
+                    target = uniqueFile(dir, name);
+                    if (!partFile.renameTo(target)) {
+                        target = null;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not finish transfer " + id, e);
+            }
+            if (target == null) {
+                abort(true);
+                return false;
+            }
+            done = true;
+            incoming.remove(key(address, id));
+            TransferListener l = listener;
+            if (l != null) {
+                l.onTransferComplete(address, id, target, true);
+            }
+            return true;
+        }
+
+        /**
+         * Gives up on the transfer and deletes the partial file, telling the sender unless it
+         * is the one that gave up.
+         */
+        synchronized void abort(boolean tellSender) {
+            if (done) return;
+            done = true;
+            incoming.remove(key(address, id));
+            close();
+            if (!partFile.delete() && partFile.exists()) {
+                Log.w(TAG, "Could not delete " + partFile);
+            }
+            if (tellSender) {
+                sendControl(address, FrameCodec.TYPE_FILE_DECLINE, id, 0);
+            }
+            TransferListener l = listener;
+            if (l != null) {
+                l.onTransferFailed(address, id, true);
+            }
+        }
+
+        synchronized void close() {
+            if (channel == null) return;
+            try {
+                channel.close();
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of transfer file failed", e);
+            }
+            channel = null;
+            file = null;
+        }
+    }
+
+    private class OutgoingTransfer extends Thread {
+        final long id;
+        final String address;
+        final File source;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final long size;
+        final CRC32 crc = new CRC32();
+        // Guarded by this
+        long ackedOffset;
+        long sentOffset;
+        boolean accepted;
+        boolean offerPending = true;
+        boolean declined;
+        long lastProgress;
+        // Acknowledgement timeouts since the receiver last acknowledged something new
+        int timeouts;
+        volatile boolean running = true;
+
+        OutgoingTransfer(long id, String address, File source) throws IOException {
+            this.id = id;
+            this.address = address;
+            this.source = source;
+            file = new RandomAccessFile(source, "r");
+            channel = file.getChannel();
+            size = channel.size();
+            setName("FileTransfer-" + Long.toHexString(id));
+        }
+
+        synchronized void onConnected() {
+            offerPending = true;
+            notifyAll();
+        }
+
+        synchronized void onDisconnected() {
+            // Resume from the last acknowledged offset once the peer is back
+            accepted = false;
+            sentOffset = ackedOffset;
+            notifyAll();
+        }
+
+        synchronized void onControl(int type, long offset) {
+            switch (type) {
+                case FrameCodec.TYPE_FILE_ACCEPT:
+                    accepted = true;
+                    ackedOffset = offset;
+                    sentOffset = offset;
+                    timeouts = 0;
+                    break;
+                case FrameCodec.TYPE_FILE_ACK:
+                    if (offset > ackedOffset) {
+                        ackedOffset = offset;
+                        timeouts = 0;
+                    }
+                    break;
+                case FrameCodec.TYPE_FILE_NACK:
+                    // Go back to the first chunk the receiver could not verify
+                    ackedOffset = Math.max(ackedOffset, offset);
+                    sentOffset = offset;
+                    break;
+                case FrameCodec.TYPE_FILE_DECLINE:
+                    declined = true;
+                    break;
+            }
+            lastProgress = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        public void run() {
+            boolean completed = false;
+            try {
+                completed = transfer();
+            } catch (InterruptedException e) {
+                // Cancelled
+            } catch (IOException e) {
+                Log.e(TAG, "Read failed for transfer " + id, e);
+            } finally {
+                outgoing.remove(id);
+                try {
+                    channel.close();
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of transfer file failed", e);
+                }
+            }
+
+            // Lets the receiver drop its partial file; it already knows if it declined
+            boolean tellReceiver;
+            synchronized (this) {
+                tellReceiver = !completed && !declined;
+            }
+            if (tellReceiver) {
+                sendControl(address, FrameCodec.TYPE_FILE_DECLINE, id, 0);
+            }
+
+            TransferListener l = listener;
+            if (l != null) {
+                if (completed) {
+                    l.onTransferComplete(address, id, source, false);
+                } else if (running) {
+                    l.onTransferFailed(address, id, false);
+                }
+            }
+        }
+
+        private boolean transfer() throws IOException, InterruptedException {
+            byte[] name = source.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] offer = ByteBuffer.allocate(8 + 8 + 2 + name.length)
+                    .putLong(id).putLong(size).putShort((short) name.length).put(name).array();
+            long reportedOffset = -1;
+
+            while (running) {
+                long chunkOffset;
+                synchronized (this) {
+                    if (offerPending && connectedPeers.containsKey(address)) {
+                        offerPending = !sender.sendFrame(address, FrameCodec.TYPE_FILE_OFFER, offer);
+                        lastProgress = System.currentTimeMillis();
+                    }
+                    // The answer to the offer may already have come back while sending it
+                    if (declined) {
+                        Log.d(TAG, "Transfer " + id + " declined by " + address);
+                        return false;
+                    }
+                    if (accepted && ackedOffset >= size) {
+                        return true;
+                    }
+                    if (accepted && ackedOffset != reportedOffset) {
+                        reportedOffset = ackedOffset;
+                        TransferListener l = listener;
+                        if (l != null) {
+                            l.onTransferProgress(address, id, ackedOffset, size, false);
+                        }
+                    }
+                    boolean windowOpen = sentOffset < size
+                            && sentOffset - ackedOffset < (long) WINDOW_CHUNKS * CHUNK_SIZE;
+                    if (!accepted || !windowOpen) {
+                        if (accepted && System.currentTimeMillis() - lastProgress > ACK_TIMEOUT_MS) {
+                            if (++timeouts > MAX_ACK_TIMEOUTS) {
+                                Log.w(TAG, "Transfer " + id + " to " + address + " is not progressing, giving up");
+                                return false;
+                            }
+                            // No acknowledgement in time; resend everything outstanding
+                            sentOffset = ackedOffset;
+                            lastProgress = System.currentTimeMillis();
+                            continue;
+                        }
+                        wait(offerPending ? QUEUE_FULL_BACKOFF_MS * 10 : ACK_TIMEOUT_MS);
+                        continue;
+                    }
+                    chunkOffset = sentOffset;
+                }
+
+                byte[] chunk = readChunk(chunkOffset);
+                synchronized (this) {
+                    // A NACK or reconnect may have moved the window while reading
+                    if (sentOffset != chunkOffset || !accepted) continue;
+                    if (sender.sendFrame(address, FrameCodec.TYPE_FILE_CHUNK, chunk)) {
+                        sentOffset = chunkOffset + chunk.length - CHUNK_HEADER;
+                    } else {
+                        wait(QUEUE_FULL_BACKOFF_MS);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private byte[] readChunk(long offset) throws IOException {
+            int length = (int) Math.min(CHUNK_SIZE, size - offset);
+            byte[] chunk = new byte[CHUNK_HEADER + length];
+            ByteBuffer data = ByteBuffer.wrap(chunk, CHUNK_HEADER, length);
+            long readAt = offset;
+            while (data.hasRemaining()) {
+                int n = channel.read(data, readAt);
+                if (n < 0) throw new IOException("File shrank during transfer");
+                readAt += n;
+            }
+            crc.reset();
+            crc.update(chunk, CHUNK_HEADER, length);
+            ByteBuffer.wrap(chunk, 0, CHUNK_HEADER).putLong(id).putLong(offset).putInt((int) crc.getValue());
+            return chunk;
+        }
+
+        void cancel() {
+            running = false;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.chatterbug.app.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM sealing of frame payloads for links that Bluetooth itself does not encrypt.
+ *
+ * Each side sends an ephemeral P-256 public key in its hello; ECDH over the two gives a shared
+ * secret from which one AES-256 key per direction is derived. Nonces are a per-direction frame
+ * counter that is never sent: frames arrive in order on an RFCOMM stream, so a dropped,
+ * replayed or reordered frame fails its tag. The frame type byte is authenticated as
+ * associated data. Keys are not tied to any identity, so this keeps out eavesdroppers but not
+ * an active man in the middle.
+ *
+ * Sealing and opening work in place. seal() is called only by the writer thread and open() only
+ * by the reader, so the two directions need no locking.
+ */
+public final class FrameCipher {
+    public static final int TAG_BYTES = 16;
+
+    private static final String CURVE = "secp256r1";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] KEY_LABEL = "chatterbug frame key v1".getBytes(StandardCharsets.US_ASCII);
+    private static final int NONCE_BYTES = 12;
+
+    private final Direction sealing;
+    private final Direction opening;
+
+    private FrameCipher(byte[] sealKey, byte[] openKey) throws GeneralSecurityException {
+        sealing = new Direction(sealKey);
+        opening = new Direction(openKey);
+    }
+
+    public static KeyPair generateKeyPair() throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot generate key pair", e);
+        }
+    }
+
+    /**
+     * Derives the keys for a link from our key pair and the X.509 encoded public key the peer
+     * sent in its hello.
+     */
+    public static FrameCipher agree(KeyPair local, byte[] peerKey) throws IOException {
+        byte[] localKey = local.getPublic().getEncoded();
+        // Our own key echoed back would make both directions use the same key
+        if (Arrays.equals(localKey, peerKey)) {
+            throw new IOException("Peer sent our own public key");
+        }
+        try {
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerKey));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(local.getPrivate());
+            agreement.doPhase(peer, true);
+            byte[] secret = agreement.generateSecret();
+            return new FrameCipher(deriveKey(secret, localKey, peerKey), deriveKey(secret, peerKey, localKey));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key exchange failed", e);
+        }
+    }
+
+    /**
+     * Key for frames going from sender to receiver: SHA-256 over a label, the shared secret and
+     * both public keys in that order.
+     */
+    private static byte[] deriveKey(byte[] secret, byte[] senderKey, byte[] receiverKey)
+            throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(KEY_LABEL);
+        digest.update(secret);
+        digest.update(senderKey);
+        digest.update(receiverKey);
+        return digest.digest();
+    }
+
+    /**
+     * Encrypts length bytes at offset and appends the tag, so TAG_BYTES more must be free after
+     * them. Returns the sealed length.
+     */
+    public int seal(int type, byte[] buffer, int offset, int length) throws IOException {
+        try {
+            return sealing.init(Cipher.ENCRYPT_MODE, type).doFinal(buffer, offset, length, buffer, offset);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal frame", e);
+        }
+    }
+
+    /**
+     * Decrypts a sealed payload in place and returns the plaintext length. Throws if the frame
+     * was tampered with, dropped or replayed.
+     */
+    public int open(int type, byte[] buffer, int offset, int length) throws IOException {
+        if (length < TAG_BYTES) {
+            throw new IOException("Sealed frame too short: " + length);
+        }
+        try {
+            return opening.init(Cipher.DECRYPT_MODE, type).doFinal(buffer, offset, length, buffer, offset);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot open frame", e);
+        }
+    }
+
+    private static final class Direction {
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] nonce = new byte[NONCE_BYTES];
+        private final byte[] associatedData = new byte[1];
+        private long counter;
+
+        Direction(byte[] key) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.key = new SecretKeySpec(key, "AES");
+        }
+
+        Cipher init(int mode, int type) throws GeneralSecurityException {
+            long value = counter++;
+            for (int i = NONCE_BYTES - 1; i >= NONCE_BYTES - 8; i--) {
+                nonce[i] = (byte) value;
+                value >>>= 8;
+            }
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            associatedData[0] = (byte) type;
+            cipher.updateAAD(associatedData);
+            return cipher;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.chatterbug.app.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for the chat link. Every frame is
+ * [varint payload length][type byte][payload bytes].
+ */
+public final class FrameCodec {
+    public static final int TYPE_MESSAGE = 0;
+    // File transfer, see FileTransferManager
+    public static final int TYPE_FILE_OFFER = 1;
+    public static final int TYPE_FILE_ACCEPT = 2;
+    public static final int TYPE_FILE_CHUNK = 3;
+    public static final int TYPE_FILE_ACK = 4;
+    public static final int TYPE_FILE_NACK = 5;
+    // Capability exchange sent by both ends as the first frame of a connection
+    public static final int TYPE_HELLO = 6;
+    // Cumulative acknowledgement of chat messages: [varint highest sequence number delivered]
+    public static final int TYPE_ACK = 7;
+    // Heartbeat; a pong echoes the ping payload ([long sender clock in nanoseconds]) unchanged
+    public static final int TYPE_PING = 8;
+    public static final int TYPE_PONG = 9;
+    // Answer to a file offer the receiver does not want, see FileTransferManager
+    public static final int TYPE_FILE_DECLINE = 10;
+
+    // The high bit of the type byte marks a deflate-compressed payload
+    public static final int FLAG_COMPRESSED = 0x80;
+    public static final int TYPE_MASK = 0x7F;
+
+    public static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+    static final int MAX_HEADER_SIZE = 6; // 5 varint bytes + type
+
+    private FrameCodec() {
+    }
+
+    public interface FrameListener {
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int writeVarint(byte[] dest, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads a varint from the buffer's position, advancing it.
+     */
+    public static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int writeVarlong(byte[] dest, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads a 64-bit varint from the buffer's position, advancing it.
+     */
+    public static long readVarlong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static int frameSize(int payloadLength) {
+        return varintSize(payloadLength) + 1 + payloadLength;
+    }
+
+    /**
+     * Writes a frame header into dest and returns the offset just past it.
+     */
+    public static int writeHeader(byte[] dest, int offset, int type, int payloadLength) {
+        offset = writeVarint(dest, offset, payloadLength);
+        dest[offset++] = (byte) type;
+        return offset;
+    }
+
+    public static byte[] encode(int type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[frameSize(length)];
+        int pos = writeHeader(frame, 0, type, length);
+        System.arraycopy(payload, offset, frame, pos, length);
+        return frame;
+    }
+
+    /**
+     * Stateless encoder that writes frames straight to a stream with a reusable header buffer.
+     * Not thread-safe; each writer owns its own instance.
+     */
+    public static final class Encoder {
+        private final byte[] header = new byte[MAX_HEADER_SIZE];
+
+        public void write(OutputStream out, int type, byte[] payload, int offset, int length) throws IOException {
+            if (length > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Frame too large: " + length);
+            }
+            int headerLength = writeHeader(header, 0, type, length);
+            out.write(header, 0, headerLength);
+            out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Incremental decoder backed by a fixed ring buffer. Bytes from each read() are fed in and
+     * every complete frame is handed to the listener. Frames that sit contiguously in the ring
+     * are delivered in place; only frames that wrap around the end are copied into a reusable
+     * scratch buffer, so steady-state decoding does not allocate.
+     *
+     * The buffer passed to the listener is only valid for the duration of the callback.
+     */
+    public static final class Decoder {
+        private final byte[] ring;
+        private final byte[] scratch;
+        private final int mask;
+        private long readPos;
+        private long writePos;
+
+        public Decoder() {
+            this(MAX_PAYLOAD_SIZE);
+        }
+
+        public Decoder(int maxPayloadSize) {
+            int capacity = Integer.highestOneBit((maxPayloadSize + MAX_HEADER_SIZE) * 2 - 1);
+            ring = new byte[capacity];
+            scratch = new byte[maxPayloadSize];
+            mask = capacity - 1;
+        }
+
+        public int capacity() {
+            return ring.length;
+        }
+
+        public int buffered() {
+            return (int) (writePos - readPos);
+        }
+
+        public void reset() {
+            readPos = 0;
+            writePos = 0;
+        }
+
+        /**
+         * Appends len bytes from src and dispatches every complete frame. Input larger than the
+         * free space is consumed in pieces, draining frames in between.
+         */
+        public void feed(byte[] src, int off, int len, FrameListener listener) throws IOException {
+            while (len > 0) {
+                int free = ring.length - buffered();
+                if (free == 0) {
+                    throw new IOException("Frame decoder overflow");
+                }
+                int n = Math.min(len, free);
+                int start = (int) (writePos & mask);
+                int first = Math.min(n, ring.length - start);
+                System.arraycopy(src, off, ring, start, first);
+                if (first < n) {
+                    System.arraycopy(src, off + first, ring, 0, n - first);
+                }
+                writePos += n;
+                off += n;
+                len -= n;
+                drain(listener);
+            }
+        }
+
+        private void drain(FrameListener listener) throws IOException {
+            while (true) {
+                long pos = readPos;
+                int available = buffered();
+                int length = 0;
+                int shift = 0;
+                int headerLength = 0;
+                boolean complete = false;
+                while (headerLength < available && headerLength < MAX_HEADER_SIZE - 1) {
+                    int b = ring[(int) (pos + headerLength) & mask];
+                    headerLength++;
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                    shift += 7;
+                }
+                if (!complete) {
+                    if (headerLength >= MAX_HEADER_SIZE - 1) {
+                        throw new IOException("Malformed frame length");
+                    }
+                    return;
+                }
+                if (length < 0 || length > scratch.length) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                if (available < headerLength + 1 + length) {
+                    return;
+                }
+                int type = ring[(int) (pos + headerLength) & mask] & 0xFF;
+                int start = (int) (pos + headerLength + 1) & mask;
+                readPos = pos + headerLength + 1 + length;
+                if (start + length <= ring.length) {
+                    listener.onFrame(type, ring, start, length);
+                } else {
+                    int first = ring.length - start;
+                    System.arraycopy(ring, start, scratch, 0, first);
+                    System.arraycopy(ring, 0, scratch, first, length - first);
+                    listener.onFrame(type, scratch, 0, length);
+                }
+            }
+        }
+    }
+}
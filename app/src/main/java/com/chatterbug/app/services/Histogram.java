@@ -0,0 +1,107 @@
+package com.chatterbug.app.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with log-scaled buckets. Values below 8 get a bucket each; above that,
+ * every power of two is split into 8 buckets, so a reported percentile is within 12.5% of
+ * the true value across the whole long range. Recording is a few atomic increments and
+ * never allocates, so it is safe on the hot paths of the reader and writer threads.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile (0-100), capped at the largest
+     * value recorded. Concurrent recording can make this slightly stale but never wrong by
+     * more than the values recorded meanwhile.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                long upper = i + 1 < BUCKETS ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,123 @@
+package com.chatterbug.app.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TCP implementation for off-device tests and benchmarks. Addresses are "host:port"; the server
+ * side listens on the loopback interface at the configured port (0 picks a free one).
+ *
+ * Like a Bluetooth address, the address one side knows the other by is the one it listens on:
+ * an outbound connection starts with [int listening port] of the connecting transport, and the
+ * accepting side reports that rather than the socket's ephemeral port.
+ */
+public class LoopbackTransport implements Transport {
+    // How long an accepted socket has to name its listening port
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private final int port;
+    private volatile int boundPort = -1;
+
+    public LoopbackTransport(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Address other LoopbackTransports can connect to, valid once listen() has returned.
+     */
+    public String getLocalAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + boundPort;
+    }
+
+    @Override
+    public ServerChannel listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        boundPort = serverSocket.getLocalPort();
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    int peerPort;
+                    try {
+                        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                        peerPort = new DataInputStream(socket.getInputStream()).readInt();
+                        socket.setSoTimeout(0);
+                    } catch (IOException e) {
+                        // Only this socket is bad; keep listening
+                        socket.close();
+                        continue;
+                    }
+                    // A peer that is not listening itself is known by its ephemeral port
+                    return new SocketChannel(socket, null, socket.getInetAddress().getHostAddress() + ":"
+                            + (peerPort > 0 ? peerPort : socket.getPort()));
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel open(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + address);
+        }
+        InetSocketAddress target = new InetSocketAddress(address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1)));
+        return new SocketChannel(new Socket(), target, address);
+    }
+
+    private class SocketChannel implements Channel {
+        private final Socket socket;
+        // Null for an accepted socket
+        private final InetSocketAddress target;
+        private final String remoteAddress;
+
+        SocketChannel(Socket socket, InetSocketAddress target, String remoteAddress) {
+            this.socket = socket;
+            this.target = target;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (target == null) return;
+            socket.connect(target);
+            socket.setTcpNoDelay(true);
+            new DataOutputStream(socket.getOutputStream()).writeInt(boundPort);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.chatterbug.app.services;
+
+import com.chatterbug.app.models.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of a chat Message, carried as the body of a TYPE_MESSAGE frame:
+ *
+ * [byte version][varint type][varlong id][varlong sender clock][varint flags][payload]
+ *
+ * The sender clock is in milliseconds since the epoch. Bit 0 of the flags varint says whether
+ * a payload follows; the message's own flags sit above it. The payload runs to the end of the
+ * frame. For TYPE_TEXT it is the UTF-8 content; other types keep their payload as raw bytes,
+ * so a type added later passes through older code without new parsing.
+ *
+ * Text is encoded straight into the output array, so encoding allocates only the result.
+ */
+public final class MessageCodec {
+    public static final int VERSION = 1;
+
+    private static final int FLAG_PAYLOAD = 1;
+    private static final int FLAGS_SHIFT = 1;
+
+    private MessageCodec() {
+    }
+
+    public static int encodedSize(Message message) {
+        int payloadLength = payloadLength(message);
+        return 1
+                + FrameCodec.varintSize(message.getType())
+                + FrameCodec.varlongSize(message.getId())
+                + FrameCodec.varlongSize(message.getSenderTimestamp())
+                + FrameCodec.varintSize(wireFlags(message, payloadLength))
+                + payloadLength;
+    }
+
+    public static byte[] encode(Message message) {
+        byte[] out = new byte[encodedSize(message)];
+        encode(message, out, 0);
+        return out;
+    }
+
+    /**
+     * Writes the message at offset, which must have encodedSize() bytes free, and returns the
+     * offset just past it.
+     */
+    public static int encode(Message message, byte[] dest, int offset) {
+        int payloadLength = payloadLength(message);
+        dest[offset++] = (byte) VERSION;
+        offset = FrameCodec.writeVarint(dest, offset, message.getType());
+        offset = FrameCodec.writeVarlong(dest, offset, message.getId());
+        offset = FrameCodec.writeVarlong(dest, offset, message.getSenderTimestamp());
+        offset = FrameCodec.writeVarint(dest, offset, wireFlags(message, payloadLength));
+        if (message.getType() == Message.TYPE_TEXT) {
+            return writeUtf8(message.getContent(), dest, offset);
+        }
+        if (payloadLength > 0) {
+            System.arraycopy(message.getPayload(), 0, dest, offset, payloadLength);
+        }
+        return offset + payloadLength;
+    }
+
+    /**
+     * Decodes the remaining bytes of in into a received message stamped with the local clock.
+     * Text goes through textDecoder, which is reset by the call.
+     */
+    public static Message decode(ByteBuffer in, Utf8StreamDecoder textDecoder) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Empty message");
+        }
+        int version = in.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported message version " + version);
+        }
+        int type = FrameCodec.readVarint(in);
+        long id = FrameCodec.readVarlong(in);
+        long senderTimestamp = FrameCodec.readVarlong(in);
+        int flags = FrameCodec.readVarint(in);
+        boolean hasPayload = (flags & FLAG_PAYLOAD) != 0;
+
+        Message message = new Message("", false, System.currentTimeMillis());
+        message.setId(id);
+        message.setType(type);
+        message.setSenderTimestamp(senderTimestamp);
+        message.setFlags(flags >>> FLAGS_SHIFT);
+        if (hasPayload) {
+            if (type == Message.TYPE_TEXT) {
+                message.setContent(textDecoder.decode(in, true));
+            } else {
+                byte[] payload = new byte[in.remaining()];
+                in.get(payload);
+                message.setPayload(payload);
+            }
+        }
+        return message;
+    }
+
+    private static int wireFlags(Message message, int payloadLength) {
+        return (message.getFlags() << FLAGS_SHIFT) | (payloadLength > 0 ? FLAG_PAYLOAD : 0);
+    }
+
+    private static int payloadLength(Message message) {
+        if (message.getType() == Message.TYPE_TEXT) {
+            return message.getContent() != null ? utf8Length(message.getContent()) : 0;
+        }
+        return message.getPayload() != null ? message.getPayload().length : 0;
+    }
+
+    static int utf8Length(CharSequence text) {
+        int length = 0;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // Unpaired surrogates are written as '?', like String.getBytes() does
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    static int writeUtf8(CharSequence text, byte[] dest, int offset) {
+        if (text == null) return offset;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                dest[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[offset++] = (byte) (0xC0 | (c >> 6));
+                dest[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                dest[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                dest[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                dest[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                dest[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dest[offset++] = '?';
+            } else {
+                dest[offset++] = (byte) (0xE0 | (c >> 12));
+                dest[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dest[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,107 @@
+package com.chatterbug.app.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection message compression. Every message is compressed on its own as raw deflate
+ * primed with a preset dictionary of common chat text, so short messages still shrink and
+ * frames stay independent of each other. The Deflater and Inflater are reused for the life of
+ * the connection; compress() is called only from the writer thread and inflate() only from the
+ * reader thread.
+ */
+public class MessageCompressor {
+    // Payloads below this rarely get smaller once the deflate overhead is paid
+    public static final int MIN_COMPRESS_SIZE = 48;
+
+    // Both peers must use the same bytes; change CAP_DEFLATE in the hello if this ever changes
+    private static final byte[] DICTIONARY = (
+            "http://https://www.com .jpg .png :) :( :D lol haha okay ok thanks thank you "
+            + "please sorry yes no maybe what when where why how who are you doing today tomorrow "
+            + "tonight morning later see you soon on my way I'm I am I'll I will we'll let me know "
+            + "can you could you would you do you want to have the and for that this with "
+            + "not just about going to was is it's it is in at of on be").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] compressBuffer = new byte[FrameCodec.MAX_PAYLOAD_SIZE];
+    private final byte[] inflateBuffer = new byte[FrameCodec.MAX_PAYLOAD_SIZE];
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    /**
+     * Compresses payload into an internal buffer and returns the compressed length, or -1 if
+     * the payload is too small or does not shrink. The result is valid until the next call.
+     */
+    public int compress(byte[] payload, int offset, int length) {
+        if (length < MIN_COMPRESS_SIZE) {
+            record(length, length);
+            return -1;
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished() && compressed < length) {
+            compressed += deflater.deflate(compressBuffer, compressed, length - compressed);
+        }
+        if (!deflater.finished() || compressed >= length) {
+            record(length, length);
+            return -1;
+        }
+        record(length, compressed);
+        return compressed;
+    }
+
+    public byte[] getCompressBuffer() {
+        return compressBuffer;
+    }
+
+    /**
+     * Inflates a compressed payload into an internal buffer and returns its length. The result
+     * is valid until the next call.
+     */
+    public int inflate(byte[] payload, int offset, int length) throws DataFormatException {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(payload, offset, length);
+        int inflated = 0;
+        while (!inflater.finished()) {
+            if (inflated == inflateBuffer.length) {
+                throw new DataFormatException("Inflated payload too large");
+            }
+            int n = inflater.inflate(inflateBuffer, inflated, inflateBuffer.length - inflated);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated compressed payload");
+            }
+            inflated += n;
+        }
+        return inflated;
+    }
+
+    public byte[] getInflateBuffer() {
+        return inflateBuffer;
+    }
+
+    private void record(int uncompressed, int wire) {
+        uncompressedBytes.addAndGet(uncompressed);
+        wireBytes.addAndGet(wire);
+    }
+
+    /**
+     * Uncompressed message bytes divided by the bytes actually sent for them; 1.0 means no gain.
+     */
+    public double getCompressionRatio() {
+        long wire = wireBytes.get();
+        return wire == 0 ? 1.0 : (double) uncompressedBytes.get() / wire;
+    }
+
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
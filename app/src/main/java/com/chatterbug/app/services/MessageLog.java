@@ -0,0 +1,489 @@
+package com.chatterbug.app.services;
+
+import com.chatterbug.app.models.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only on-disk history for one peer.
+ *
+ * Records live in segment files named after the index of their first record. Next to each
+ * segment sits an offset index with one 4-byte file position per record, so any record can be
+ * located without scanning. Reads of full segments go through read-only memory maps of both
+ * files, which keeps opening a long conversation cheap: nothing is loaded until it is asked for.
+ *
+ * Appends and status changes are written to the file immediately and made durable by a
+ * background thread that fsyncs everything written since its last pass in one go (group
+ * commit). Call sync() to wait for durability.
+ *
+ * Record layout: [int body length][byte flags][long timestamp], then in a version 2 record
+ * [long id][long sender clock][int type][int message flags], then the UTF-8 content for
+ * TYPE_TEXT or the raw payload for other types. Version 1 records, written before ids and
+ * types were kept, have no extended header and always hold text; bit 7 of the flags byte
+ * tells the two apart.
+ *
+ * The flags byte is the only part of a record that is ever rewritten, to track delivery
+ * status. A record still marked STATUS_SENDING from before the log was opened lost its sender
+ * with the previous process, so it reads as STATUS_FAILED and is rewritten that way when first
+ * read.
+ */
+public class MessageLog {
+    private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+    private static final int RECORD_HEADER = 4 + 1 + 8;
+    private static final int EXTENDED_HEADER = 8 + 8 + 4 + 4;
+    private static final int FLAG_SENT = 1;
+    // Bits 1-3 of the flags byte hold the Message status
+    private static final int STATUS_SHIFT = 1;
+    private static final int STATUS_MASK = 0x7 << STATUS_SHIFT;
+    // Set in version 2 records, which carry the extended header
+    private static final int FLAG_EXTENDED = 0x80;
+    private static final long RETRY_DELAY_MS = 100;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CommitThread commitThread;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private long appendedCount;
+    private long durableCount;
+    // Records that existed when the log was opened
+    private long recoveredCount;
+    // Number of setStatus() rewrites so far, and how many of them the last commit covered
+    private long statusChanges;
+    private long durableStatusChanges;
+    private boolean closed;
+
+    public static MessageLog open(File root, String peerAddress) throws IOException {
+        return new MessageLog(new File(root, peerAddress.replace(':', '_')));
+    }
+
+    public MessageLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        recover();
+        durableCount = appendedCount;
+        recoveredCount = appendedCount;
+        commitThread = new CommitThread();
+        commitThread.start();
+    }
+
+    private static final class Segment {
+        final long baseIndex;
+        final RandomAccessFile logFile;
+        final RandomAccessFile indexFile;
+        final FileChannel log;
+        final FileChannel index;
+        int count;
+        int size;
+        boolean dirty;
+        MappedByteBuffer mappedLog;
+        MappedByteBuffer mappedIndex;
+
+        Segment(File dir, long baseIndex) throws IOException {
+            this.baseIndex = baseIndex;
+            String name = String.format(Locale.US, "%020d", baseIndex);
+            logFile = new RandomAccessFile(new File(dir, name + LOG_SUFFIX), "rw");
+            indexFile = new RandomAccessFile(new File(dir, name + INDEX_SUFFIX), "rw");
+            log = logFile.getChannel();
+            index = indexFile.getChannel();
+        }
+
+        void close() throws IOException {
+            mappedLog = null;
+            mappedIndex = null;
+            log.close();
+            index.close();
+            logFile.close();
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Opens existing segments and drops any partially written tail left by a crash. Records
+     * missing from a short or lost offset index are found again by walking the length prefixes
+     * in the log, so only an incomplete last record is ever thrown away.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        List<Long> bases = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(LOG_SUFFIX)) {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                }
+            }
+        }
+        Long[] sorted = bases.toArray(new Long[0]);
+        Arrays.sort(sorted);
+
+        for (long base : sorted) {
+            Segment segment = new Segment(dir, base);
+            long logSize = segment.log.size();
+            int count = (int) (segment.index.size() / 4);
+            int size = 0;
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            while (count > 0) {
+                // The last indexed record must be complete on disk
+                entry.clear();
+                segment.index.read(entry, (long) (count - 1) * 4);
+                int position = entry.getInt(0);
+                entry.clear();
+                if (position >= 0 && position + 4 <= logSize && segment.log.read(entry, position) == 4
+                        && position + 4L + entry.getInt(0) <= logSize) {
+                    size = position + 4 + entry.getInt(0);
+                    break;
+                }
+                count--;
+            }
+            segment.index.truncate((long) count * 4);
+
+            int indexed = count;
+            while (size + 4L <= logSize) {
+                entry.clear();
+                if (segment.log.read(entry, size) != 4) break;
+                int bodyLength = entry.getInt(0);
+                if (bodyLength < RECORD_HEADER - 4 || size + 4L + bodyLength > logSize) break;
+                entry.clear();
+                entry.putInt(size);
+                entry.flip();
+                segment.index.write(entry, (long) count * 4);
+                count++;
+                size += 4 + bodyLength;
+            }
+            if (count > indexed) {
+                segment.index.force(false);
+            }
+
+            segment.log.truncate(size);
+            segment.count = count;
+            segment.size = size;
+            segments.add(segment);
+            appendedCount = base + count;
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(new Segment(dir, 0));
+        }
+    }
+
+    public synchronized long size() {
+        return appendedCount;
+    }
+
+    /**
+     * Appends a message and returns its index. The record is readable immediately and becomes
+     * durable with the next group commit.
+     */
+    public synchronized long append(Message message) throws IOException {
+        if (closed) throw new IOException("Log closed");
+
+        byte[] content;
+        if (message.getType() == Message.TYPE_TEXT) {
+            content = message.getContent() != null
+                    ? message.getContent().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        } else {
+            content = message.getPayload() != null ? message.getPayload() : new byte[0];
+        }
+        int recordSize = RECORD_HEADER + EXTENDED_HEADER + content.length;
+        if (writeBuffer.capacity() < recordSize) {
+            writeBuffer = ByteBuffer.allocate(Integer.highestOneBit(recordSize) << 1);
+        }
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.size > 0 && segment.size + recordSize > SEGMENT_BYTES) {
+            segment = new Segment(dir, appendedCount);
+            segments.add(segment);
+        }
+
+        writeBuffer.clear();
+        writeBuffer.putInt(recordSize - 4);
+        writeBuffer.put(withStatus(FLAG_EXTENDED | (message.isSent() ? FLAG_SENT : 0), message.getStatus()));
+        writeBuffer.putLong(message.getTimestamp());
+        writeBuffer.putLong(message.getId());
+        writeBuffer.putLong(message.getSenderTimestamp());
+        writeBuffer.putInt(message.getType());
+        writeBuffer.putInt(message.getFlags());
+        writeBuffer.put(content);
+        writeBuffer.flip();
+        int position = segment.size;
+        while (writeBuffer.hasRemaining()) {
+            segment.log.write(writeBuffer, position + writeBuffer.position());
+        }
+
+        writeBuffer.clear();
+        writeBuffer.putInt(position);
+        writeBuffer.flip();
+        segment.index.write(writeBuffer, (long) segment.count * 4);
+
+        segment.size += recordSize;
+        segment.count++;
+        segment.dirty = true;
+        long appended = appendedCount++;
+        notifyAll();
+        return appended;
+    }
+
+    private static byte withStatus(int flags, int status) {
+        return (byte) ((flags & ~STATUS_MASK) | ((status << STATUS_SHIFT) & STATUS_MASK));
+    }
+
+    /**
+     * Rewrites the delivery status of a stored message in place. Becomes durable with the next
+     * group commit, like an append.
+     */
+    public synchronized void setStatus(long index, int status) throws IOException {
+        if (closed) throw new IOException("Log closed");
+        if (index < 0 || index >= appendedCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + appendedCount);
+        }
+        Segment segment = segmentFor(index);
+        int local = (int) (index - segment.baseIndex);
+
+        ByteBuffer entry = ByteBuffer.allocate(4);
+        segment.index.read(entry, (long) local * 4);
+        int position = entry.getInt(0);
+        entry.clear();
+        entry.limit(1);
+        segment.log.read(entry, position + 4);
+        writeFlags(segment, position, withStatus(entry.get(0), status));
+    }
+
+    private void writeFlags(Segment segment, int position, byte flags) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(1);
+        entry.put(flags);
+        entry.flip();
+        segment.log.write(entry, position + 4);
+        segment.dirty = true;
+        statusChanges++;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until everything appended and every status change so far has been fsynced.
+     */
+    public synchronized void sync() throws IOException {
+        long target = appendedCount;
+        long statusTarget = statusChanges;
+        while ((durableCount < target || durableStatusChanges < statusTarget) && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for commit");
+            }
+        }
+    }
+
+    public synchronized Message read(long index) throws IOException {
+        if (index < 0 || index >= appendedCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + appendedCount);
+        }
+        Segment segment = segmentFor(index);
+        int local = (int) (index - segment.baseIndex);
+        ByteBuffer log = recordAt(segment, local);
+        int position = log.position();
+        int bodyLength = log.getInt(position);
+        int flags = log.get(position + 4);
+        long timestamp = log.getLong(position + 5);
+        int dataStart = position + RECORD_HEADER;
+        long id = 0;
+        long senderTimestamp = timestamp;
+        int type = Message.TYPE_TEXT;
+        int messageFlags = 0;
+        if ((flags & FLAG_EXTENDED) != 0) {
+            id = log.getLong(dataStart);
+            senderTimestamp = log.getLong(dataStart + 8);
+            type = log.getInt(dataStart + 16);
+            messageFlags = log.getInt(dataStart + 20);
+            dataStart += EXTENDED_HEADER;
+        }
+        byte[] data = new byte[position + 4 + bodyLength - dataStart];
+        log.position(dataStart);
+        log.get(data);
+
+        int status = (flags & STATUS_MASK) >>> STATUS_SHIFT;
+        if (status == Message.STATUS_SENDING && index < recoveredCount && !closed) {
+            status = Message.STATUS_FAILED;
+            writeFlags(segment, position, withStatus(flags, status));
+        }
+        Message message;
+        if (type == Message.TYPE_TEXT) {
+            message = new Message(new String(data, StandardCharsets.UTF_8), (flags & FLAG_SENT) != 0, timestamp);
+        } else {
+            message = new Message(null, (flags & FLAG_SENT) != 0, timestamp);
+            message.setPayload(data);
+        }
+        message.setId(id);
+        message.setSenderTimestamp(senderTimestamp);
+        message.setType(type);
+        message.setFlags(messageFlags);
+        message.setStatus(status);
+        return message;
+    }
+
+    /**
+     * A buffer positioned at the start of a record, holding at least the whole record. Full
+     * segments never grow again and are mapped once; the tail grows with every append, so it is
+     * read through the channel rather than remapped each time.
+     */
+    private ByteBuffer recordAt(Segment segment, int local) throws IOException {
+        if (segment != segments.get(segments.size() - 1)) {
+            if (segment.mappedIndex == null) {
+                segment.mappedIndex = segment.index.map(FileChannel.MapMode.READ_ONLY, 0, (long) segment.count * 4);
+                segment.mappedLog = segment.log.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            }
+            ByteBuffer view = segment.mappedLog.duplicate();
+            view.position(segment.mappedIndex.getInt(local * 4));
+            return view;
+        }
+
+        readBuffer.clear();
+        readBuffer.limit(4);
+        segment.index.read(readBuffer, (long) local * 4);
+        int position = readBuffer.getInt(0);
+        readBuffer.clear();
+        readBuffer.limit(4);
+        segment.log.read(readBuffer, position);
+        int recordSize = 4 + readBuffer.getInt(0);
+        if (readBuffer.capacity() < recordSize) {
+            readBuffer = ByteBuffer.allocate(Integer.highestOneBit(recordSize) << 1);
+        }
+        readBuffer.clear();
+        readBuffer.limit(recordSize);
+        while (readBuffer.hasRemaining()) {
+            if (segment.log.read(readBuffer, position + readBuffer.position()) < 0) {
+                throw new IOException("Record " + (segment.baseIndex + local) + " truncated");
+            }
+        }
+        readBuffer.position(0);
+        return readBuffer;
+    }
+
+    /**
+     * Reads up to count messages starting at from, oldest first.
+     */
+    public synchronized List<Message> read(long from, int count) throws IOException {
+        long end = Math.min(appendedCount, from + count);
+        List<Message> messages = new ArrayList<>((int) Math.max(0, end - from));
+        for (long i = Math.max(0, from); i < end; i++) {
+            messages.add(read(i));
+        }
+        return messages;
+    }
+
+    private Segment segmentFor(long index) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).baseIndex <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segments.get(low);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            commitThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.log.force(false);
+                    segment.index.force(false);
+                }
+                segment.close();
+            }
+        }
+    }
+
+    private class CommitThread extends Thread {
+        CommitThread() {
+            setName("MessageLog-" + dir.getName());
+        }
+
+        public void run() {
+            List<Segment> dirty = new ArrayList<>();
+            while (true) {
+                long target;
+                long statusTarget;
+                synchronized (MessageLog.this) {
+                    while (durableCount == appendedCount && durableStatusChanges == statusChanges && !closed) {
+                        try {
+                            MessageLog.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) return;
+                    target = appendedCount;
+                    statusTarget = statusChanges;
+                    for (Segment segment : segments) {
+                        if (segment.dirty) {
+                            segment.dirty = false;
+                            dirty.add(segment);
+                        }
+                    }
+                }
+
+                // Everything appended while this force runs is picked up by the next pass
+                try {
+                    for (Segment segment : dirty) {
+                        segment.log.force(false);
+                        segment.index.force(false);
+                    }
+                } catch (IOException e) {
+                    // Retry on the next pass; waiters stay blocked until the data is durable
+                    synchronized (MessageLog.this) {
+                        for (Segment segment : dirty) {
+                            segment.dirty = true;
+                        }
+                        try {
+                            MessageLog.this.wait(RETRY_DELAY_MS);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                    dirty.clear();
+                    continue;
+                }
+                dirty.clear();
+
+                synchronized (MessageLog.this) {
+                    durableCount = target;
+                    durableStatusChanges = statusTarget;
+                    MessageLog.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.chatterbug.app.services;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Dedicated writer for one connection. Callers enqueue frames without blocking; the writer
+ * drains what piled up while the previous socket write was in progress and sends it as a
+ * single write, so a slow link turns bursts into fewer, larger writes.
+ *
+ * Frames are queued on one of three logical channels picked by frame type: control (hello,
+ * acks, heartbeats and file transfer signalling), chat messages, and bulk file data. Each batch
+ * takes every queued control frame first, then shares the rest between chat and bulk by
+ * deficit round robin, with chat getting CHAT_WEIGHT times the bulk share. Bulk gets at most
+ * one file chunk per batch, so however much file data is queued, a chat message waits for at
+ * most one chunk of it on the wire; and chat's share leaves room for that chunk, so a busy chat
+ * cannot starve a transfer. The receiver needs no changes: frame types already say which
+ * channel a frame belongs to.
+ *
+ * On an encrypted link every frame but the hello is sealed with a FrameCipher, in place in the
+ * batch buffer. Until the key exchange has finished only hello frames go out; everything else
+ * stays queued.
+ */
+public class OutboundWriter extends Thread {
+    private static final String TAG = "OutboundWriter";
+
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_CHAT = 1;
+    public static final int CHANNEL_BULK = 2;
+    private static final int CHANNEL_COUNT = 3;
+
+    // Per channel
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+    // A file chunk frame, with room for its transfer header and frame overhead
+    private static final int BULK_FRAME_BYTES = FileTransferManager.CHUNK_SIZE + 64;
+    private static final int CHAT_WEIGHT = 4;
+    private static final int BULK_WEIGHT = 1;
+    // Credit a weighted channel earns per batch, times its weight. Sized so a full chat share
+    // still leaves room in the batch for one file chunk frame, which bulk earns every round or two
+    private static final int QUANTUM_BYTES = (MAX_BATCH_BYTES - BULK_FRAME_BYTES) / CHAT_WEIGHT;
+    // Credit kept by a channel that was cut short for lack of room: enough for its largest frame
+    private static final int MAX_DEFICIT = FrameCodec.MAX_PAYLOAD_SIZE + FrameCodec.MAX_HEADER_SIZE;
+
+    public interface WriteCallback {
+        void onWriteComplete(boolean success);
+    }
+
+    private static final class PendingWrite {
+        final int type;
+        final byte[] payload;
+        final WriteCallback callback;
+        final long enqueuedAt = System.nanoTime();
+
+        PendingWrite(int type, byte[] payload, WriteCallback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.callback = callback;
+        }
+    }
+
+    private final OutputStream outStream;
+    private final int queueCapacity;
+    // Guarded by queues
+    private final ArrayDeque<PendingWrite>[] queues;
+    private final int[] deficits = new int[CHANNEL_COUNT];
+    private int queued;
+    // Set once the writer has failed what was left queued; nothing is accepted after that
+    private boolean drained;
+    private final FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+    private final byte[] batchBuffer = new byte[MAX_BATCH_BYTES];
+    // Sealed frames too large for the batch buffer; allocated on first use
+    private byte[] sealBuffer;
+    private final List<PendingWrite> batch = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile MessageCompressor compressor;
+    private volatile FrameCipher cipher;
+    // Guarded by queues; set while an encrypted link is waiting for its keys
+    private boolean awaitingCipher;
+    private final ChatMetrics metrics = ChatMetrics.get();
+
+    public OutboundWriter(OutputStream outStream) {
+        this(outStream, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public OutboundWriter(OutputStream outStream, int queueCapacity) {
+        this.outStream = outStream;
+        this.queueCapacity = queueCapacity;
+        this.queues = new ArrayDeque[CHANNEL_COUNT];
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        setName("OutboundWriter");
+    }
+
+    public static int channelOf(int type) {
+        switch (type & FrameCodec.TYPE_MASK) {
+            case FrameCodec.TYPE_MESSAGE:
+                return CHANNEL_CHAT;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return CHANNEL_BULK;
+            default:
+                return CHANNEL_CONTROL;
+        }
+    }
+
+    /**
+     * Queues a frame for sending on the channel its type belongs to. Returns false if the
+     * writer is closed or that channel's queue is full; the callback is not invoked in that case.
+     */
+    public boolean enqueue(int type, byte[] payload, WriteCallback callback) {
+        if (!running) return false;
+        if (payload.length > FrameCodec.MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload too large: " + payload.length);
+        }
+        ArrayDeque<PendingWrite> queue = queues[channelOf(type)];
+        synchronized (queues) {
+            // Checked under the lock, so a frame either makes the final drain or is refused
+            if (drained) return false;
+            metrics.getQueueDepth().record(queued);
+            if (queue.size() >= queueCapacity) return false;
+            queue.addLast(new PendingWrite(type, payload, callback));
+            queued++;
+            queues.notify();
+        }
+        return true;
+    }
+
+    /**
+     * Turns on compression of chat messages once the peer has said it can inflate them.
+     */
+    public void setCompressor(MessageCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Holds back everything but hello frames until setCipher() is called. Call before the
+     * first frame is queued on a link that is to be encrypted.
+     */
+    public void requireCipher() {
+        synchronized (queues) {
+            awaitingCipher = true;
+        }
+    }
+
+    /**
+     * Seals every later frame except hellos, and releases the frames held by requireCipher().
+     */
+    public void setCipher(FrameCipher cipher) {
+        synchronized (queues) {
+            this.cipher = cipher;
+            awaitingCipher = false;
+            queues.notify();
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (queues) {
+            return queued;
+        }
+    }
+
+    public int getQueueDepth(int channel) {
+        synchronized (queues) {
+            return queues[channel].size();
+        }
+    }
+
+    public void run() {
+        Log.i(TAG, "OutboundWriter started");
+        while (running) {
+            try {
+                takeBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            boolean success = true;
+            try {
+                metrics.recordBytesOut(writeBatch());
+                long now = System.nanoTime();
+                for (PendingWrite write : batch) {
+                    metrics.getSendLatency().record((now - write.enqueuedAt) / 1000);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                success = false;
+                running = false;
+            }
+            complete(batch, success);
+            batch.clear();
+        }
+        synchronized (queues) {
+            drained = true;
+            for (ArrayDeque<PendingWrite> queue : queues) {
+                batch.addAll(queue);
+                queue.clear();
+            }
+            queued = 0;
+        }
+        complete(batch, false);
+        batch.clear();
+    }
+
+    /**
+     * Waits for at least one frame and fills the batch: all control frames, then one deficit
+     * round robin round over chat and bulk.
+     */
+    private void takeBatch() throws InterruptedException {
+        synchronized (queues) {
+            ArrayDeque<PendingWrite> control = queues[CHANNEL_CONTROL];
+            while (queued == 0 || (awaitingCipher && !takeHellos(control))) {
+                queues.wait();
+            }
+            if (!batch.isEmpty()) return;
+            int bytes = 0;
+            while (!control.isEmpty()) {
+                bytes += take(control);
+            }
+            // A frame larger than its channel's quantum needs credit from several rounds
+            while (true) {
+                bytes += takeWeighted(CHANNEL_CHAT, CHAT_WEIGHT, MAX_BATCH_BYTES - bytes);
+                bytes += takeWeighted(CHANNEL_BULK, BULK_WEIGHT, MAX_BATCH_BYTES - bytes);
+                if (!batch.isEmpty()) break;
+            }
+        }
+    }
+
+    /**
+     * Moves the queued hello frames into the batch, leaving the other control frames queued.
+     */
+    private boolean takeHellos(ArrayDeque<PendingWrite> control) {
+        for (Iterator<PendingWrite> it = control.iterator(); it.hasNext(); ) {
+            PendingWrite write = it.next();
+            if (write.type == FrameCodec.TYPE_HELLO) {
+                it.remove();
+                queued--;
+                batch.add(write);
+            }
+        }
+        return !batch.isEmpty();
+    }
+
+    private int takeWeighted(int channel, int weight, int room) {
+        ArrayDeque<PendingWrite> queue = queues[channel];
+        if (queue.isEmpty()) {
+            deficits[channel] = 0;
+            return 0;
+        }
+        deficits[channel] += weight * QUANTUM_BYTES;
+        int bytes = 0;
+        while (!queue.isEmpty()) {
+            int size = FrameCodec.frameSize(queue.peekFirst().payload.length);
+            if (size > deficits[channel] || (size > room - bytes && !batch.isEmpty())) break;
+            deficits[channel] -= size;
+            bytes += take(queue);
+        }
+        deficits[channel] = queue.isEmpty() ? 0 : Math.min(deficits[channel], MAX_DEFICIT);
+        return bytes;
+    }
+
+    private int take(ArrayDeque<PendingWrite> queue) {
+        PendingWrite write = queue.pollFirst();
+        queued--;
+        batch.add(write);
+        return FrameCodec.frameSize(write.payload.length);
+    }
+
+    /**
+     * Writes the batch and returns the number of bytes put on the wire.
+     */
+    private long writeBatch() throws IOException {
+        MessageCompressor compressor = this.compressor;
+        FrameCipher cipher = this.cipher;
+        long written = 0;
+        int length = 0;
+        for (PendingWrite write : batch) {
+            int type = write.type;
+            byte[] payload = write.payload;
+            int payloadLength = payload.length;
+            if (compressor != null && type == FrameCodec.TYPE_MESSAGE) {
+                int compressed = compressor.compress(payload, 0, payloadLength);
+                if (compressed >= 0) {
+                    type |= FrameCodec.FLAG_COMPRESSED;
+                    payload = compressor.getCompressBuffer();
+                    payloadLength = compressed;
+                }
+            }
+
+            boolean seal = cipher != null && type != FrameCodec.TYPE_HELLO;
+            int wireLength = seal ? payloadLength + FrameCipher.TAG_BYTES : payloadLength;
+            int frameSize = FrameCodec.frameSize(wireLength);
+            written += frameSize;
+            if (length + frameSize > batchBuffer.length) {
+                if (length > 0) {
+                    outStream.write(batchBuffer, 0, length);
+                    length = 0;
+                }
+                if (frameSize > batchBuffer.length) {
+                    if (seal) {
+                        if (sealBuffer == null) {
+                            sealBuffer = new byte[FrameCodec.frameSize(FrameCodec.MAX_PAYLOAD_SIZE + FrameCipher.TAG_BYTES)];
+                        }
+                        outStream.write(sealBuffer, 0, writeSealed(sealBuffer, 0, cipher, type, payload, payloadLength));
+                    } else {
+                        encoder.write(outStream, type, payload, 0, payloadLength);
+                    }
+                    continue;
+                }
+            }
+            if (seal) {
+                length = writeSealed(batchBuffer, length, cipher, type, payload, payloadLength);
+                continue;
+            }
+            length = FrameCodec.writeHeader(batchBuffer, length, type, payloadLength);
+            System.arraycopy(payload, 0, batchBuffer, length, payloadLength);
+            length += payloadLength;
+        }
+        if (length > 0) {
+            outStream.write(batchBuffer, 0, length);
+        }
+        outStream.flush();
+        return written;
+    }
+
+    private static int writeSealed(byte[] dest, int offset, FrameCipher cipher, int type,
+                                   byte[] payload, int payloadLength) throws IOException {
+        offset = FrameCodec.writeHeader(dest, offset, type, payloadLength + FrameCipher.TAG_BYTES);
+        System.arraycopy(payload, 0, dest, offset, payloadLength);
+        return offset + cipher.seal(type, dest, offset, payloadLength);
+    }
+
+    private static void complete(List<PendingWrite> writes, boolean success) {
+        for (PendingWrite write : writes) {
+            if (write.callback != null) {
+                write.callback.onWriteComplete(success);
+            }
+        }
+    }
+
+    public void cancel() {
+        running = false;
+        interrupt();
+    }
+}
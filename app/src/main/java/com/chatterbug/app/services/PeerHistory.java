@@ -0,0 +1,226 @@
+package com.chatterbug.app.services;
+
+import android.util.Log;
+
+import com.chatterbug.app.models.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Chat history for one peer: its MessageLog, or an in-memory list when the log cannot be
+ * opened. Positions are message indexes, oldest first, and match adapter positions.
+ *
+ * Appended messages are also added to a SearchIndex, kept next to the log. The index is loaded
+ * by the first prepareSearch() or search(), not when the history is opened, and saved once it
+ * is SAVE_EVERY messages ahead of its file (on the executor given to open(), if any) and on
+ * close.
+ *
+ * The ids of the last RECENT_IDS received messages are remembered, so a message the peer sends
+ * again, e.g. after a reconnect that started a new session, is not saved twice.
+ *
+ * Thread-safe; messages are appended from connection threads and read by the UI.
+ */
+public class PeerHistory {
+    private static final String TAG = "PeerHistory";
+    private static final String SEARCH_INDEX_FILE = "search.terms";
+    // Messages indexed since the last save that make the index worth saving again
+    private static final int SAVE_EVERY = 200;
+    private static final int RECENT_IDS = 256;
+
+    // Returned by appendReceived() for a message already in the history
+    public static final long DUPLICATE = -2;
+
+    private final MessageLog log;
+    // Used only when the on-disk log cannot be opened
+    private final List<Message> fallback;
+    private final SearchIndex searchIndex;
+    // Runs index saves due after an append; null to leave them to prepareSearch() and close()
+    private final Executor saveExecutor;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    // Ids of recently received messages, oldest first; filled from the history on first use
+    private final LinkedHashSet<Long> recentIds = new LinkedHashSet<>();
+    private boolean recentIdsLoaded;
+
+    public static PeerHistory open(File root, String peerAddress) {
+        return open(root, peerAddress, null);
+    }
+
+    public static PeerHistory open(File root, String peerAddress, Executor saveExecutor) {
+        try {
+            return new PeerHistory(MessageLog.open(root, peerAddress), saveExecutor);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open message history for " + peerAddress, e);
+            return new PeerHistory(null, null);
+        }
+    }
+
+    private PeerHistory(MessageLog log, Executor saveExecutor) {
+        this.log = log;
+        this.fallback = log == null ? new ArrayList<Message>() : null;
+        this.searchIndex = new SearchIndex(log != null ? new File(log.getDirectory(), SEARCH_INDEX_FILE) : null);
+        this.saveExecutor = saveExecutor;
+    }
+
+    public int size() {
+        if (log != null) {
+            return (int) log.size();
+        }
+        synchronized (fallback) {
+            return fallback.size();
+        }
+    }
+
+    /**
+     * Returns the message's index in the history, or -1 if it could not be saved.
+     */
+    public long append(Message message) {
+        long index;
+        if (log == null) {
+            synchronized (fallback) {
+                fallback.add(message);
+                index = fallback.size() - 1;
+            }
+        } else {
+            try {
+                index = log.append(message);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save message", e);
+                return -1;
+            }
+        }
+        // Skipped while the index is behind or not loaded; search() catches up from the history
+        if (searchIndex.add(index, message.getContent()) && searchIndex.getUnsavedCount() >= SAVE_EVERY) {
+            scheduleSave();
+        }
+        return index;
+    }
+
+    /**
+     * Appends a message received from the peer, unless one with the same id is among those
+     * received last. Returns its index, DUPLICATE, or -1 if it could not be saved. Messages
+     * without an id, from peers that predate them, are always appended.
+     */
+    public long appendReceived(Message message) {
+        if (message.getId() != 0) {
+            synchronized (recentIds) {
+                if (!recentIdsLoaded) {
+                    recentIdsLoaded = true;
+                    loadRecentIds();
+                }
+                if (!rememberId(message.getId())) return DUPLICATE;
+            }
+        }
+        return append(message);
+    }
+
+    private void loadRecentIds() {
+        int end = size();
+        try {
+            for (Message message : read(Math.max(0, end - 2 * RECENT_IDS), Math.min(end, 2 * RECENT_IDS))) {
+                if (!message.isSent() && message.getId() != 0) {
+                    rememberId(message.getId());
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read recent message ids", e);
+        }
+    }
+
+    /**
+     * Adds an id to the recent ones and returns false if it was there already.
+     */
+    private boolean rememberId(long id) {
+        if (!recentIds.add(id)) return false;
+        if (recentIds.size() > RECENT_IDS) {
+            Iterator<Long> oldest = recentIds.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Positions of the messages matching a search-as-you-type query, newest first. Brings the
+     * index up to date with the history first, so call it off the main thread.
+     */
+    public int[] search(String query, int limit) throws IOException {
+        prepareSearch();
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * Loads the search index if needed and indexes everything not indexed yet, e.g. history
+     * written before the index existed. Call off the main thread.
+     */
+    public void prepareSearch() throws IOException {
+        if (!searchIndex.isLoaded()) {
+            try {
+                searchIndex.load();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not load search index, rebuilding it", e);
+                searchIndex.clear();
+            }
+        }
+        searchIndex.catchUp(this);
+        if (log != null && searchIndex.getUnsavedCount() >= SAVE_EVERY) {
+            searchIndex.save();
+        }
+    }
+
+    private void scheduleSave() {
+        if (log == null || saveExecutor == null || !saveScheduled.compareAndSet(false, true)) return;
+        try {
+            saveExecutor.execute(() -> {
+                saveScheduled.set(false);
+                try {
+                    searchIndex.save();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not save search index", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down; close() saves
+            saveScheduled.set(false);
+        }
+    }
+
+    public List<Message> read(int from, int count) throws IOException {
+        if (log != null) {
+            return log.read(from, count);
+        }
+        synchronized (fallback) {
+            return new ArrayList<>(fallback.subList(from, from + count));
+        }
+    }
+
+    public void setStatus(long index, int status) {
+        if (log == null) return;
+        try {
+            log.setStatus(index, status);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save message status", e);
+        }
+    }
+
+    public void close() {
+        if (log == null) return;
+        try {
+            searchIndex.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save search index", e);
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close message history", e);
+        }
+    }
+}
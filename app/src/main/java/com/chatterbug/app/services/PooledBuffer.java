@@ -0,0 +1,78 @@
+package com.chatterbug.app.services;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted buffer from a BufferPool. Whoever holds a reference calls release()
+ * exactly once when done; anyone who hands the buffer on while still using it calls retain()
+ * first. The buffer goes back to the pool when the last reference is released and must not be
+ * touched after that.
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    void reset(int size) {
+        buffer.clear().limit(size);
+        refCount.set(1);
+    }
+
+    /**
+     * The data lies between position and limit. The ByteBuffer itself is shared by all holders,
+     * so use duplicate() before moving its position when the buffer is retained elsewhere.
+     */
+    public ByteBuffer buffer() {
+        checkLive();
+        return buffer;
+    }
+
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public int arrayOffset() {
+        return buffer.arrayOffset();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(this);
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Buffer released too often");
+        }
+    }
+
+    private void checkLive() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Buffer already released");
+        }
+    }
+}
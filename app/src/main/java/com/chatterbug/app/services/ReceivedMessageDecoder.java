@@ -0,0 +1,38 @@
+package com.chatterbug.app.services;
+
+import com.chatterbug.app.models.Message;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the message buffers BluetoothChatService hands to its listener, with one
+ * Utf8StreamDecoder per peer. Each peer's messages arrive on its own connection reader, so a
+ * decoder is never used by two threads at once.
+ */
+public class ReceivedMessageDecoder {
+    private final ConcurrentHashMap<String, Utf8StreamDecoder> decoders = new ConcurrentHashMap<>();
+
+    /**
+     * Decodes the message and releases the buffer, also when decoding fails.
+     */
+    public Message decode(String address, PooledBuffer buffer) throws IOException {
+        try {
+            return MessageCodec.decode(buffer.buffer(), decoderFor(address));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private Utf8StreamDecoder decoderFor(String address) {
+        Utf8StreamDecoder decoder = decoders.get(address);
+        if (decoder == null) {
+            Utf8StreamDecoder created = new Utf8StreamDecoder();
+            decoder = decoders.putIfAbsent(address, created);
+            if (decoder == null) {
+                decoder = created;
+            }
+        }
+        return decoder;
+    }
+}
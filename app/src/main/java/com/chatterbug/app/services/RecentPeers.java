@@ -0,0 +1,139 @@
+package com.chatterbug.app.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Peers the user opened chats with, kept on disk to guess whom to connect to at launch. Each
+ * peer scores the number of chats opened with it, halved for every HALF_LIFE_MS since the last
+ * one, so a regular partner wins over someone chatted with once, and a recent change of partner
+ * wins within a few days. A peer below MIN_SCORE, e.g. one chatted with only once, or not for
+ * a week, is not worth a speculative connect and is never returned as the most likely.
+ *
+ * File layout: [int version][int count], then per peer [UTF address][int chats][long last chat].
+ */
+public class RecentPeers {
+    public static final int MAX_PEERS = 16;
+    public static final long HALF_LIFE_MS = 3L * 24 * 60 * 60 * 1000;
+    // Two chats in the last day or so, or several over the last week
+    public static final double MIN_SCORE = 1.5;
+
+    private static final int VERSION = 1;
+
+    private static final class Entry {
+        int chats;
+        long lastChatAt;
+    }
+
+    private final File file;
+    private final Map<String, Entry> peers = new LinkedHashMap<>();
+
+    public RecentPeers(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the saved peers. A missing file leaves the list empty.
+     */
+    public synchronized void load() throws IOException {
+        peers.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                Entry entry = new Entry();
+                entry.chats = in.readInt();
+                entry.lastChatAt = in.readLong();
+                peers.put(address, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // No chats yet
+        }
+    }
+
+    /**
+     * Writes the list through a temporary file, so a crash mid-write keeps the previous one.
+     */
+    public void save() throws IOException {
+        List<String> addresses;
+        List<Entry> entries = new ArrayList<>();
+        synchronized (this) {
+            addresses = new ArrayList<>(peers.keySet());
+            for (Entry entry : peers.values()) {
+                Entry copy = new Entry();
+                copy.chats = entry.chats;
+                copy.lastChatAt = entry.lastChatAt;
+                entries.add(copy);
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(addresses.size());
+            for (int i = 0; i < addresses.size(); i++) {
+                out.writeUTF(addresses.get(i));
+                out.writeInt(entries.get(i).chats);
+                out.writeLong(entries.get(i).lastChatAt);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Records a chat opened with the peer at the given time.
+     */
+    public synchronized void record(String address, long now) {
+        Entry entry = peers.get(address);
+        if (entry == null) {
+            // Makes room by forgetting the least likely peer
+            if (peers.size() >= MAX_PEERS) {
+                peers.remove(find(now, false));
+            }
+            entry = new Entry();
+            peers.put(address, entry);
+        }
+        entry.chats++;
+        entry.lastChatAt = now;
+    }
+
+    /**
+     * The peer with the highest score, or null if no peer scores at least MIN_SCORE.
+     */
+    public synchronized String getMostLikely(long now) {
+        String found = find(now, true);
+        return found != null && score(peers.get(found), now) >= MIN_SCORE ? found : null;
+    }
+
+    private String find(long now, boolean highest) {
+        String found = null;
+        double foundScore = 0;
+        for (Map.Entry<String, Entry> peer : peers.entrySet()) {
+            double score = score(peer.getValue(), now);
+            if (found == null || (highest ? score > foundScore : score < foundScore)) {
+                found = peer.getKey();
+                foundScore = score;
+            }
+        }
+        return found;
+    }
+
+    private static double score(Entry entry, long now) {
+        double age = Math.max(0, now - entry.lastChatAt);
+        return entry.chats * Math.pow(0.5, age / HALF_LIFE_MS);
+    }
+}
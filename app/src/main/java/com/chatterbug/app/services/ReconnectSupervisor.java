@@ -0,0 +1,79 @@
+package com.chatterbug.app.services;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules reconnect attempts with jittered exponential backoff. The delay before attempt n is
+ * drawn uniformly from [d/2, d] where d = min(MAX_DELAY_MS, BASE_DELAY_MS * 2^n), so peers that
+ * dropped together do not retry in lockstep.
+ */
+class ReconnectSupervisor {
+    private static final String TAG = "ReconnectSupervisor";
+
+    static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 30000;
+
+    interface Reconnector {
+        void reconnect(String address);
+    }
+
+    private final Reconnector reconnector;
+    private final Random random = new Random();
+    private final Map<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    ReconnectSupervisor(Reconnector reconnector) {
+        this.reconnector = reconnector;
+    }
+
+    static long backoffDelay(int attempt, Random random) {
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Schedules attempt number attempt (0-based). Returns false once the attempts are used up.
+     */
+    synchronized boolean schedule(final String address, int attempt) {
+        if (attempt >= MAX_ATTEMPTS) return false;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        long delay = backoffDelay(attempt, random);
+        Log.d(TAG, "reconnect " + address + " attempt " + (attempt + 1) + " in " + delay + "ms");
+        cancel(address);
+        pending.put(address, scheduler.schedule(() -> {
+            pending.remove(address);
+            reconnector.reconnect(address);
+        }, delay, TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    boolean isPending(String address) {
+        return pending.containsKey(address);
+    }
+
+    void cancel(String address) {
+        ScheduledFuture<?> task = pending.remove(address);
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    synchronized void shutdown() {
+        pending.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
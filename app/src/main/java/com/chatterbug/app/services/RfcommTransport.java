@@ -0,0 +1,104 @@
+package com.chatterbug.app.services;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Secure links need the devices to be paired and are encrypted by the radio. Insecure links
+ * skip pairing and connect faster, but carry plain bytes; BluetoothChatService encrypts them
+ * itself. The two modes use different service records, so they never talk to each other.
+ */
+public class RfcommTransport implements Transport {
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+    private static final UUID MY_UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final boolean secure;
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter) {
+        this(bluetoothAdapter, true);
+    }
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter, boolean secure) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.secure = secure;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public ServerChannel listen() throws IOException {
+        final BluetoothServerSocket serverSocket = secure
+                ? bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE)
+                : bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new RfcommChannel(serverSocket.accept(), false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel open(String address) throws IOException {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        BluetoothSocket socket = secure
+                ? device.createRfcommSocketToServiceRecord(MY_UUID_SECURE)
+                : device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        return new RfcommChannel(socket, true);
+    }
+
+    private class RfcommChannel implements Channel {
+        private final BluetoothSocket socket;
+        private final boolean outbound;
+
+        RfcommChannel(BluetoothSocket socket, boolean outbound) {
+            this.socket = socket;
+            this.outbound = outbound;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!outbound) return;
+            // Discovery slows down the connection considerably
+            bluetoothAdapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
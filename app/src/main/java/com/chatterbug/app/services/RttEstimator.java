@@ -0,0 +1,59 @@
+package com.chatterbug.app.services;
+
+/**
+ * Smoothed round-trip time and its variation for one link, computed as in RFC 6298:
+ * SRTT and RTTVAR are exponentially weighted averages of the samples, and the retransmission
+ * timeout is SRTT + 4 * RTTVAR, clamped to [MIN_RTO_MS, MAX_RTO_MS]. Until the first sample
+ * arrives the timeout is INITIAL_RTO_MS.
+ *
+ * Each retransmission timeout doubles the timeout (section 5.5) until the next sample sets it
+ * from the averages again. Samples must only come from exchanges that were not retransmitted
+ * (Karn's rule), since the reply to a resent frame cannot be matched to one transmission.
+ */
+class RttEstimator {
+    static final long INITIAL_RTO_MS = 3000;
+    static final long MIN_RTO_MS = 1000;
+    static final long MAX_RTO_MS = 60000;
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double srtt;
+    private double rttvar;
+    private long rto = INITIAL_RTO_MS;
+    private int samples;
+
+    synchronized void addSample(double rttMillis) {
+        if (samples++ == 0) {
+            srtt = rttMillis;
+            rttvar = rttMillis / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMillis);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rttMillis;
+        }
+        rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long) Math.ceil(srtt + 4 * rttvar)));
+    }
+
+    /**
+     * Backs off after a retransmission timeout.
+     */
+    synchronized void backOff() {
+        rto = Math.min(MAX_RTO_MS, rto * 2);
+    }
+
+    synchronized boolean hasSamples() {
+        return samples > 0;
+    }
+
+    synchronized double getSmoothedRtt() {
+        return srtt;
+    }
+
+    synchronized double getRttVariation() {
+        return rttvar;
+    }
+
+    synchronized long getRetransmitTimeout() {
+        return rto;
+    }
+}
@@ -0,0 +1,311 @@
+package com.chatterbug.app.services;
+
+import com.chatterbug.app.models.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the content of one peer's history, for search as you type.
+ *
+ * Every term maps to the history indexes of the messages containing it. Each posting list is a
+ * byte array of varint gaps between ascending indexes, so a typical entry takes one or two
+ * bytes. Terms are kept sorted, which makes a prefix query a range scan; the postings of all
+ * matching terms are OR-ed into a bitset per query word and the words AND-ed together, so a
+ * query costs one pass over the postings it touches and no sorting.
+ *
+ * Messages must be added in history order. One that arrives ahead of the index (because the
+ * index is still catching up with the history, or has not been loaded yet) is skipped and
+ * picked up by catchUp().
+ *
+ * Nothing is read from disk until load() is called, so opening a history stays cheap; until
+ * then the index is empty and is never saved over the file.
+ *
+ * File layout: [int version][long indexed count][int term count], then per term
+ * [UTF term][int postings][long last index][int byte length][gap bytes].
+ */
+public class SearchIndex {
+    private static final int VERSION = 1;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int CATCH_UP_BATCH = 500;
+
+    private final File file;
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long indexedCount;
+    private boolean loaded;
+    // Messages covered by the file as of the last save
+    private long savedCount;
+    // Held for a whole save, so two saves never write the temporary file at once
+    private final Object saveLock = new Object();
+
+    /**
+     * file may be null for an index that is never saved.
+     */
+    public SearchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the saved index unless that was done already. A missing file leaves the index
+     * empty. The file is read without holding the lock, so adds are skipped meanwhile rather
+     * than blocked.
+     */
+    public void load() throws IOException {
+        synchronized (this) {
+            if (loaded) return;
+        }
+        TreeMap<String, Postings> read = new TreeMap<>();
+        long count = 0;
+        if (file != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == VERSION) {
+                    count = in.readLong();
+                    int termCount = in.readInt();
+                    for (int i = 0; i < termCount; i++) {
+                        String term = in.readUTF();
+                        Postings postings = new Postings();
+                        postings.count = in.readInt();
+                        postings.last = in.readLong();
+                        postings.length = in.readInt();
+                        postings.data = new byte[Math.max(postings.length, 4)];
+                        in.readFully(postings.data, 0, postings.length);
+                        read.put(term, postings);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Nothing indexed yet
+            }
+        }
+        synchronized (this) {
+            if (loaded) return;
+            terms.clear();
+            terms.putAll(read);
+            indexedCount = count;
+            savedCount = count;
+            loaded = true;
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Writes the index through a temporary file, so a crash mid-write keeps the previous one.
+     * Postings are copied under the lock and written outside it. Does nothing before load().
+     */
+    public void save() throws IOException {
+        if (file == null) return;
+        synchronized (saveLock) {
+            long count;
+            List<String> names;
+            List<Postings> snapshot;
+            synchronized (this) {
+                if (!loaded || indexedCount == savedCount) return;
+                count = indexedCount;
+                names = new ArrayList<>(terms.keySet());
+                snapshot = new ArrayList<>(terms.size());
+                for (Postings postings : terms.values()) {
+                    snapshot.add(postings.copy());
+                }
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeLong(count);
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    Postings postings = snapshot.get(i);
+                    out.writeUTF(names.get(i));
+                    out.writeInt(postings.count);
+                    out.writeLong(postings.last);
+                    out.writeInt(postings.length);
+                    out.write(postings.data, 0, postings.length);
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+            synchronized (this) {
+                savedCount = count;
+            }
+        }
+    }
+
+    /**
+     * Messages indexed since the last save.
+     */
+    public synchronized long getUnsavedCount() {
+        return indexedCount - savedCount;
+    }
+
+    public synchronized long getIndexedCount() {
+        return indexedCount;
+    }
+
+    /**
+     * Drops everything, for a history that no longer matches what was indexed or an index file
+     * that could not be read. The index counts as loaded afterwards.
+     */
+    public synchronized void clear() {
+        terms.clear();
+        indexedCount = 0;
+        // Whatever the file holds no longer counts
+        savedCount = -1;
+        loaded = true;
+    }
+
+    /**
+     * Indexes the message at the given history index. Returns false, and indexes nothing, if
+     * it is not the next message the index expects.
+     */
+    public synchronized boolean add(long index, String content) {
+        if (!loaded || index != indexedCount) return false;
+        indexedCount++;
+        if (content == null) return true;
+
+        for (String term : tokenize(content)) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            postings.add(index);
+        }
+        return true;
+    }
+
+    /**
+     * Indexes whatever the history holds beyond what has been indexed, reading it in batches
+     * without holding the lock. Call on a background thread, after load().
+     */
+    public void catchUp(PeerHistory history) throws IOException {
+        while (true) {
+            long from = getIndexedCount();
+            int available = history.size();
+            if (from > available) {
+                // The history was reset underneath us; start over
+                clear();
+                continue;
+            }
+            if (from == available) return;
+            List<Message> batch = history.read((int) from, (int) Math.min(CATCH_UP_BATCH, available - from));
+            for (int i = 0; i < batch.size(); i++) {
+                add(from + i, batch.get(i).getContent());
+            }
+        }
+    }
+
+    /**
+     * History indexes of the messages that contain, for every word of the query, a term starting
+     * with that word. Newest first, at most limit of them.
+     */
+    public int[] search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) return new int[0];
+
+        BitSet matches = null;
+        synchronized (this) {
+            for (String word : words) {
+                BitSet bits = new BitSet((int) indexedCount);
+                for (Postings postings : terms.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                    postings.decodeInto(bits);
+                }
+                if (matches == null) {
+                    matches = bits;
+                } else {
+                    matches.and(bits);
+                }
+                if (matches.isEmpty()) break;
+            }
+        }
+
+        int[] hits = new int[Math.min(limit, matches.cardinality())];
+        int count = 0;
+        for (int i = matches.length() - 1; i >= 0 && count < hits.length; i = matches.previousSetBit(i - 1)) {
+            hits[count++] = i;
+        }
+        return hits;
+    }
+
+    /**
+     * Lower-cased runs of letters and digits, each cut to MAX_TERM_LENGTH.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int n = text.length();
+        for (int i = 0; i <= n; i++) {
+            char c = i < n ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_TERM_LENGTH) {
+                    word.append(Character.toLowerCase(c));
+                }
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Ascending message indexes stored as varint gaps from the previous one.
+     */
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        long last = -1;
+
+        void add(long index) {
+            // A term repeated within one message is listed once
+            if (index == last) return;
+            if (data.length - length < 10) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            length = FrameCodec.writeVarlong(data, length, index - last);
+            last = index;
+            count++;
+        }
+
+        void decodeInto(BitSet bits) {
+            long index = -1;
+            int pos = 0;
+            while (pos < length) {
+                long gap = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = data[pos++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                index += gap;
+                bits.set((int) index);
+            }
+        }
+
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.data = Arrays.copyOf(data, length);
+            copy.length = length;
+            copy.count = count;
+            copy.last = last;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.chatterbug.app.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Link layer used by BluetoothChatService. RfcommTransport is the production implementation;
+ * LoopbackTransport runs the same protocol and threading code over localhost TCP on a plain JVM.
+ */
+public interface Transport {
+
+    interface Channel extends Closeable {
+        /**
+         * Blocks until an outbound channel is connected. Accepted channels are already connected.
+         * Closing the channel from another thread aborts a pending connect.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+    }
+
+    interface ServerChannel extends Closeable {
+        Channel accept() throws IOException;
+    }
+
+    ServerChannel listen() throws IOException;
+
+    /**
+     * Creates an unconnected channel to the given address.
+     */
+    Channel open(String address) throws IOException;
+}
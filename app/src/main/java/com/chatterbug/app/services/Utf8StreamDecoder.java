@@ -0,0 +1,105 @@
+package com.chatterbug.app.services;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable UTF-8 decoder for the receive path. A multi-byte character split across two calls
+ * is carried over instead of turning into replacement characters, and decoding goes into a
+ * CharBuffer that is kept between calls, so the only allocation per call is the result String.
+ *
+ * Not thread-safe; use one instance per connection.
+ */
+public final class Utf8StreamDecoder {
+    private static final int MAX_SEQUENCE = 4;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Trailing bytes of an incomplete sequence from the previous call
+    private final ByteBuffer carry = ByteBuffer.allocate(MAX_SEQUENCE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    public String decode(byte[] src, int offset, int length, boolean endOfInput) {
+        return decode(ByteBuffer.wrap(src, offset, length), endOfInput);
+    }
+
+    /**
+     * Decodes the remaining bytes of src. With endOfInput false, an incomplete sequence at the
+     * end is held back for the next call; with endOfInput true it is replaced and the decoder is
+     * reset for the next message.
+     */
+    public String decode(ByteBuffer src, boolean endOfInput) {
+        chars.clear();
+
+        while (carry.position() > 0 && src.hasRemaining()) {
+            int carried = carry.position();
+            int srcStart = src.position();
+            int take = Math.min(src.remaining(), carry.remaining());
+            for (int i = 0; i < take; i++) {
+                carry.put(src.get(srcStart + i));
+            }
+            carry.flip();
+            decodeInto(carry, false);
+            int consumed = carry.position();
+            if (consumed >= carried) {
+                // The carried sequence completed with bytes from src
+                src.position(srcStart + consumed - carried);
+                carry.clear();
+            } else if (consumed == 0) {
+                // Still incomplete; src had fewer bytes than the sequence needs
+                src.position(srcStart + take);
+                carry.compact();
+                break;
+            } else {
+                // Part of the carried bytes were malformed; retry with the rest
+                carry.limit(carried);
+                carry.compact();
+            }
+        }
+
+        decodeInto(src, endOfInput);
+        if (src.hasRemaining()) {
+            carry.put(src);
+        }
+
+        if (endOfInput) {
+            if (carry.position() > 0) {
+                carry.flip();
+                decodeInto(carry, true);
+                carry.clear();
+            }
+            while (decoder.flush(chars).isOverflow()) {
+                grow();
+            }
+            decoder.reset();
+        }
+
+        chars.flip();
+        return chars.toString();
+    }
+
+    public void reset() {
+        decoder.reset();
+        carry.clear();
+    }
+
+    private void decodeInto(ByteBuffer in, boolean endOfInput) {
+        while (true) {
+            CoderResult result = decoder.decode(in, chars, endOfInput);
+            if (!result.isOverflow()) return;
+            grow();
+        }
+    }
+
+    private void grow() {
+        CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+        chars.flip();
+        larger.put(chars);
+        chars = larger;
+    }
+}
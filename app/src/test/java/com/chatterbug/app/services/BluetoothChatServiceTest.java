@@ -0,0 +1,236 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.chatterbug.app.models.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection lifecycle of two services talking over LoopbackTransport.
+ */
+public class BluetoothChatServiceTest {
+    private static final long TIMEOUT_S = 10;
+
+    private LoopbackTransport transportA;
+    private LoopbackTransport transportB;
+    private RecordingListener listenerA;
+    private RecordingListener listenerB;
+    private BluetoothChatService serviceA;
+    private BluetoothChatService serviceB;
+
+    @Before
+    public void setUp() throws Exception {
+        transportA = new LoopbackTransport(0);
+        transportB = new LoopbackTransport(0);
+        listenerA = new RecordingListener();
+        listenerB = new RecordingListener();
+        serviceA = new BluetoothChatService(transportA, listenerA);
+        serviceB = new BluetoothChatService(transportB, listenerB);
+        serviceA.setAutoReconnect(false);
+        serviceB.setAutoReconnect(false);
+        serviceA.start();
+        serviceB.start();
+        awaitListening(transportA);
+        awaitListening(transportB);
+    }
+
+    @After
+    public void tearDown() {
+        serviceA.stop();
+        serviceB.stop();
+    }
+
+    @Test
+    public void connectsAndNamesEachOtherByListeningAddress() throws Exception {
+        serviceA.connect(transportB.getLocalAddress());
+
+        assertEquals(transportB.getLocalAddress(), listenerA.awaitState(BluetoothChatService.STATE_CONNECTED));
+        assertEquals(transportA.getLocalAddress(), listenerB.awaitState(BluetoothChatService.STATE_CONNECTED));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, serviceA.getState(transportB.getLocalAddress()));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, serviceB.getState(transportA.getLocalAddress()));
+    }
+
+    @Test
+    public void deliversMessagesBothWays() throws Exception {
+        connect();
+
+        assertTrue(serviceA.write(transportB.getLocalAddress(), bytes("hello b")));
+        assertEquals(transportA.getLocalAddress() + " hello b", listenerB.awaitMessage());
+
+        assertTrue(serviceB.write(transportA.getLocalAddress(), bytes("hello a")));
+        assertEquals(transportB.getLocalAddress() + " hello a", listenerA.awaitMessage());
+    }
+
+    @Test
+    public void deliversInOrder() throws Exception {
+        connect();
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(serviceA.write(transportB.getLocalAddress(), bytes("message " + i)));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(transportA.getLocalAddress() + " message " + i, listenerB.awaitMessage());
+        }
+    }
+
+    @Test
+    public void disconnectIsSeenAsLostByThePeer() throws Exception {
+        connect();
+
+        serviceA.disconnect(transportB.getLocalAddress());
+
+        assertEquals(transportA.getLocalAddress(), listenerB.lost.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(BluetoothChatService.STATE_LISTEN, serviceA.getState(transportB.getLocalAddress()));
+        assertEquals(BluetoothChatService.STATE_LISTEN, serviceB.getState(transportA.getLocalAddress()));
+        assertTrue(serviceA.getConnectedPeers().isEmpty());
+        assertTrue(serviceB.getConnectedPeers().isEmpty());
+    }
+
+    @Test
+    public void stoppedPeerIsReportedLost() throws Exception {
+        connect();
+
+        serviceB.stop();
+
+        assertEquals(transportB.getLocalAddress(), listenerA.lost.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(serviceA.getConnectedPeers().isEmpty());
+        assertEquals(false, serviceA.write(transportB.getLocalAddress(), bytes("too late")));
+    }
+
+    @Test
+    public void everyMessageIsDeliveredOrFailedWhenThePeerGoes() throws Exception {
+        connect();
+        BlockingQueue<Integer> outcomes = new LinkedBlockingQueue<>();
+        BluetoothChatService.DeliveryCallback callback = status -> {
+            if (status == Message.STATUS_DELIVERED || status == Message.STATUS_FAILED) {
+                outcomes.add(status);
+            }
+        };
+        int written = 0;
+        for (int i = 0; i < 20; i++) {
+            if (serviceA.write(transportB.getLocalAddress(), bytes("message " + i), callback)) {
+                written++;
+            }
+        }
+
+        serviceB.stop();
+
+        // Without reconnecting nothing left in the window can arrive, so it must be failed
+        for (int i = 0; i < written; i++) {
+            assertNotNull(outcomes.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void newSocketFromAConnectedPeerTakesOver() throws Exception {
+        connect();
+
+        // The peer dials again, as after giving up on a link that still looks up to us
+        Transport.Channel redial = transportA.open(transportB.getLocalAddress());
+        redial.connect();
+
+        // The old link is closed under A, while B never sees the peer go
+        assertEquals(transportB.getLocalAddress(), listenerA.lost.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, serviceB.getState(transportA.getLocalAddress()));
+        assertEquals(null, listenerB.lost.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, serviceB.getConnectedPeers().size());
+        redial.close();
+    }
+
+    @Test
+    public void connectToNobodyFails() throws Exception {
+        LoopbackTransport closed = new LoopbackTransport(0);
+        closed.listen().close();
+
+        serviceA.connect(closed.getLocalAddress());
+
+        assertEquals(closed.getLocalAddress(), listenerA.failed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    private void connect() throws InterruptedException {
+        serviceA.connect(transportB.getLocalAddress());
+        assertNotNull(listenerA.awaitState(BluetoothChatService.STATE_CONNECTED));
+        assertNotNull(listenerB.awaitState(BluetoothChatService.STATE_CONNECTED));
+    }
+
+    private static void awaitListening(LoopbackTransport transport) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_S * 1000;
+        while (transport.getLocalAddress().endsWith(":-1")) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Transport never started listening");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class RecordingListener implements BluetoothChatService.BluetoothChatListener {
+        // "address state" for every state change
+        final BlockingQueue<String> states = new LinkedBlockingQueue<>();
+        // "address text" for every message
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> lost = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+
+        /**
+         * Address of the next peer reported in the given state.
+         */
+        String awaitState(int state) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+            while (true) {
+                String event = states.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (event == null) return null;
+                int space = event.lastIndexOf(' ');
+                if (Integer.parseInt(event.substring(space + 1)) == state) {
+                    return event.substring(0, space);
+                }
+            }
+        }
+
+        String awaitMessage() throws InterruptedException {
+            return messages.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onConnectionStateChanged(String address, int state) {
+            states.add(address + " " + state);
+        }
+
+        @Override
+        public void onMessageReceived(String address, PooledBuffer message) {
+            ByteBuffer buffer = message.buffer().duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            message.release();
+            messages.add(address + " " + new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onConnectionFailed(String address) {
+            failed.add(address);
+        }
+
+        @Override
+        public void onConnectionLost(String address) {
+            lost.add(address);
+        }
+
+        @Override
+        public void onLinkQualityChanged(String address, double smoothedRttMillis, double rttVariationMillis) {
+        }
+    }
+}
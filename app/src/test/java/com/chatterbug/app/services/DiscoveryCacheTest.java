@@ -0,0 +1,72 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.chatterbug.app.models.BluetoothDeviceModel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Saving, loading and merging of cached scan results.
+ */
+public class DiscoveryCacheTest {
+    private static final long TTL = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reloadsWhatWasSaved() throws Exception {
+        File file = new File(folder.getRoot(), "devices");
+        DiscoveryCache cache = new DiscoveryCache(file, TTL);
+        cache.put(new BluetoothDeviceModel("phone", "00:11", true, -40), 100);
+        cache.markInquiryComplete(100);
+        cache.save(100);
+
+        DiscoveryCache reloaded = new DiscoveryCache(file, TTL);
+        reloaded.load();
+        List<BluetoothDeviceModel> devices = reloaded.getFreshDevices(200);
+        assertEquals(1, devices.size());
+        assertEquals("phone", devices.get(0).getName());
+        assertFalse(reloaded.needsInquiry(200));
+    }
+
+    @Test
+    public void loadKeepsDevicesPutBeforeIt() throws Exception {
+        File file = new File(folder.getRoot(), "devices");
+        DiscoveryCache saved = new DiscoveryCache(file, TTL);
+        saved.put(new BluetoothDeviceModel("old name", "00:11", false, -80), 100);
+        saved.put(new BluetoothDeviceModel("laptop", "00:22", false, -60), 100);
+        saved.save(100);
+
+        DiscoveryCache cache = new DiscoveryCache(file, TTL);
+        // A scan result that lands before the file has been read
+        cache.put(new BluetoothDeviceModel("new name", "00:11", true, -30), 500);
+        cache.load();
+
+        List<BluetoothDeviceModel> devices = cache.getFreshDevices(600);
+        assertEquals(2, devices.size());
+        for (BluetoothDeviceModel device : devices) {
+            if (device.getAddress().equals("00:11")) {
+                assertEquals("new name", device.getName());
+                assertEquals(500, device.getLastSeen());
+            }
+        }
+    }
+
+    @Test
+    public void missingFileLeavesTheCacheAsItIs() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(new File(folder.getRoot(), "devices"), TTL);
+        cache.put(new BluetoothDeviceModel("phone", "00:11", true, -40), 100);
+        cache.load();
+        assertEquals(1, cache.getFreshDevices(200).size());
+        assertTrue(cache.needsInquiry(200));
+    }
+}
@@ -0,0 +1,217 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Offers, consent and delivery between two managers wired directly to each other.
+ */
+public class FileTransferManagerTest {
+    private static final long TIMEOUT_S = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileTransferManager sender;
+    private FileTransferManager receiver;
+    private RecordingListener senderEvents;
+    private RecordingListener receiverEvents;
+    private File receiveDir;
+
+    @Before
+    public void setUp() throws Exception {
+        FileTransferManager[] managers = new FileTransferManager[2];
+        // The sender is "a" to the receiver and the receiver "b" to the sender
+        managers[0] = new FileTransferManager((address, type, payload) -> {
+            managers[1].onFrame("a", type, payload, 0, payload.length);
+            return true;
+        });
+        managers[1] = new FileTransferManager((address, type, payload) -> {
+            managers[0].onFrame("b", type, payload, 0, payload.length);
+            return true;
+        });
+        sender = managers[0];
+        receiver = managers[1];
+        senderEvents = new RecordingListener();
+        receiverEvents = new RecordingListener();
+        sender.setListener(senderEvents);
+        receiver.setListener(receiverEvents);
+        receiveDir = folder.newFolder("received");
+        receiver.setReceiveDirectory(receiveDir);
+        receiver.onPeerConnected("a");
+    }
+
+    @After
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+    }
+
+    @Test
+    public void deliversAcceptedFile() throws Exception {
+        receiver.setOfferListener((address, id, name, size) ->
+                receiver.answerOffer(address, id, "a".equals(address) && "notes.txt".equals(name)));
+        File source = file("notes.txt", 3 * FileTransferManager.CHUNK_SIZE + 17);
+
+        sender.sendFile("b", source);
+        sender.onPeerConnected("b");
+
+        File received = receiverEvents.completed.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(new File(receiveDir, "notes.txt"), received);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+        assertEquals(source, senderEvents.completed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void declinesWithoutOfferListener() throws Exception {
+        sender.sendFile("b", file("notes.txt", 100));
+        sender.onPeerConnected("b");
+
+        assertEquals("b", senderEvents.failed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, receiveDir.list().length);
+    }
+
+    @Test
+    public void declinesWhenListenerSaysNo() throws Exception {
+        receiver.setOfferListener((address, id, name, size) -> receiver.answerOffer(address, id, false));
+
+        sender.sendFile("b", file("notes.txt", 100));
+        sender.onPeerConnected("b");
+
+        assertEquals("b", senderEvents.failed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, receiveDir.list().length);
+    }
+
+    @Test
+    public void declinesFilesOverTheLimit() throws Exception {
+        boolean[] asked = new boolean[1];
+        receiver.setOfferListener((address, id, name, size) -> asked[0] = true);
+        receiver.setMaxIncomingSize(1000);
+
+        sender.sendFile("b", file("big.bin", 1001));
+        sender.onPeerConnected("b");
+
+        assertEquals("b", senderEvents.failed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertFalse(asked[0]);
+    }
+
+    @Test
+    public void keepsExistingFiles() throws Exception {
+        receiver.setOfferListener((address, id, name, size) -> receiver.answerOffer(address, id, true));
+        File existing = new File(receiveDir, "notes.txt");
+        try (OutputStream out = new FileOutputStream(existing)) {
+            out.write(1);
+        }
+
+        sender.sendFile("b", file("notes.txt", 100));
+        sender.onPeerConnected("b");
+
+        assertEquals(new File(receiveDir, "notes (1).txt"), receiverEvents.completed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(1, existing.length());
+    }
+
+    @Test
+    public void declinesBadNames() throws Exception {
+        receiver.setOfferListener((address, id, name, size) -> receiver.answerOffer(address, id, true));
+
+        // An offer frame as a peer could craft it: [long id][long size][short length][name]
+        byte[] name = "..".getBytes(StandardCharsets.UTF_8);
+        byte[] offer = ByteBuffer.allocate(8 + 8 + 2 + name.length)
+                .putLong(1).putLong(10).putShort((short) name.length).put(name).array();
+        receiver.onFrame("a", FrameCodec.TYPE_FILE_OFFER, offer, 0, offer.length);
+
+        assertEquals(0, receiveDir.list().length);
+    }
+
+    @Test
+    public void waitsForTheAnswer() throws Exception {
+        BlockingQueue<Long> offers = new LinkedBlockingQueue<>();
+        receiver.setOfferListener((address, id, name, size) -> offers.add(id));
+        File source = file("notes.txt", 2 * FileTransferManager.CHUNK_SIZE);
+
+        sender.sendFile("b", source);
+        sender.onPeerConnected("b");
+        long id = offers.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        // Asked once, however often the offer comes
+        sender.onPeerConnected("b");
+        assertNull(offers.poll(200, TimeUnit.MILLISECONDS));
+        assertNull(receiverEvents.completed.poll(200, TimeUnit.MILLISECONDS));
+
+        receiver.answerOffer("a", id, true);
+        File received = receiverEvents.completed.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+    }
+
+    @Test
+    public void dropsThePartialFileWhenTheSenderGivesUp() throws Exception {
+        receiver.setOfferListener((address, id, name, size) -> receiver.answerOffer(address, id, true));
+
+        // Offered and half sent by hand, then abandoned
+        byte[] name = "notes.txt".getBytes(StandardCharsets.UTF_8);
+        byte[] offer = ByteBuffer.allocate(8 + 8 + 2 + name.length)
+                .putLong(1).putLong(10).putShort((short) name.length).put(name).array();
+        receiver.onFrame("a", FrameCodec.TYPE_FILE_OFFER, offer, 0, offer.length);
+        byte[] data = new byte[5];
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] chunk = ByteBuffer.allocate(8 + 8 + 4 + data.length)
+                .putLong(1).putLong(0).putInt((int) crc.getValue()).put(data).array();
+        receiver.onFrame("a", FrameCodec.TYPE_FILE_CHUNK, chunk, 0, chunk.length);
+        assertEquals(1, receiveDir.list().length);
+
+        byte[] decline = ByteBuffer.allocate(16).putLong(1).putLong(0).array();
+        receiver.onFrame("a", FrameCodec.TYPE_FILE_DECLINE, decline, 0, decline.length);
+        assertEquals("a", receiverEvents.failed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, receiveDir.list().length);
+    }
+
+    private File file(String name, int length) throws IOException {
+        File file = new File(folder.newFolder(), name);
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static final class RecordingListener implements FileTransferManager.TransferListener {
+        final BlockingQueue<File> completed = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onTransferProgress(String address, long transferId, long bytes, long total, boolean incoming) {
+        }
+
+        @Override
+        public void onTransferComplete(String address, long transferId, File file, boolean incoming) {
+            completed.add(file);
+        }
+
+        @Override
+        public void onTransferFailed(String address, long transferId, boolean incoming) {
+            failed.add(address);
+        }
+    }
+}
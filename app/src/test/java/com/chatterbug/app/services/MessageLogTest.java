@@ -0,0 +1,206 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.chatterbug.app.models.Message;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends, reads and crash recovery of the on-disk history.
+ */
+public class MessageLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        MessageLog log = new MessageLog(folder.newFolder("peer"));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, log.append(new Message("message " + i, i % 2 == 0, 1000 + i)));
+            // Reading the tail right after each append must see the new record
+            assertEquals("message " + i, log.read(i).getContent());
+        }
+        for (int i = 0; i < 100; i++) {
+            Message message = log.read(i);
+            assertEquals("message " + i, message.getContent());
+            assertEquals(i % 2 == 0, message.isSent());
+            assertEquals(1000 + i, message.getTimestamp());
+        }
+        log.close();
+    }
+
+    @Test
+    public void reopensWhatWasWritten() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 10; i++) {
+            log.append(new Message("message " + i, true, i));
+        }
+        log.close();
+
+        log = new MessageLog(dir);
+        assertEquals(10, log.size());
+        assertEquals("message 9", log.read(9).getContent());
+        log.close();
+    }
+
+    @Test
+    public void rebuildsALostIndexFromTheLog() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 10; i++) {
+            log.append(new Message("message " + i, false, i));
+        }
+        log.close();
+        assertTrue(segmentFile(dir, ".idx").delete());
+
+        log = new MessageLog(dir);
+        assertEquals(10, log.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + i, log.read(i).getContent());
+        }
+        assertEquals(10, log.append(new Message("after", true, 10)));
+        log.close();
+    }
+
+    @Test
+    public void completesAShortIndex() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 10; i++) {
+            log.append(new Message("message " + i, false, i));
+        }
+        log.close();
+        try (RandomAccessFile index = new RandomAccessFile(segmentFile(dir, ".idx"), "rw")) {
+            index.setLength(4 * 3 + 2);
+        }
+
+        log = new MessageLog(dir);
+        assertEquals(10, log.size());
+        assertEquals("message 9", log.read(9).getContent());
+        log.close();
+    }
+
+    @Test
+    public void dropsOnlyATornLastRecord() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 10; i++) {
+            log.append(new Message("message " + i, false, i));
+        }
+        log.close();
+        File logFile = segmentFile(dir, ".log");
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        log = new MessageLog(dir);
+        assertEquals(9, log.size());
+        assertEquals("message 8", log.read(8).getContent());
+        log.close();
+    }
+
+    @Test
+    public void keepsStatusChanges() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        Message message = new Message("hello", true, 1);
+        message.setStatus(Message.STATUS_SENT);
+        log.append(message);
+        log.setStatus(0, Message.STATUS_DELIVERED);
+        // Returns only once the rewrite itself is durable
+        log.sync();
+        assertEquals(Message.STATUS_DELIVERED, log.read(0).getStatus());
+        log.close();
+
+        log = new MessageLog(dir);
+        assertEquals(Message.STATUS_DELIVERED, log.read(0).getStatus());
+        log.close();
+    }
+
+    @Test
+    public void failsMessagesLeftSendingByAnEarlierRun() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        Message message = new Message("hello", true, 1);
+        message.setStatus(Message.STATUS_SENDING);
+        log.append(message);
+        assertEquals(Message.STATUS_SENDING, log.read(0).getStatus());
+        log.close();
+
+        log = new MessageLog(dir);
+        assertEquals(Message.STATUS_FAILED, log.read(0).getStatus());
+        assertTrue(log.read(0).isSent());
+        log.append(message);
+        assertEquals(Message.STATUS_SENDING, log.read(1).getStatus());
+        log.close();
+    }
+
+    @Test
+    public void keepsIdTypeFlagsAndSenderClock() throws Exception {
+        File dir = folder.newFolder("peer");
+        MessageLog log = new MessageLog(dir);
+        Message text = new Message("hello", false, 2000);
+        text.setId(42);
+        text.setFlags(5);
+        text.setSenderTimestamp(1500);
+        log.append(text);
+        Message other = new Message(null, false, 3000);
+        other.setType(7);
+        other.setPayload(new byte[] {1, 2, 3});
+        log.append(other);
+        log.close();
+
+        log = new MessageLog(dir);
+        Message read = log.read(0);
+        assertEquals("hello", read.getContent());
+        assertEquals(42, read.getId());
+        assertEquals(5, read.getFlags());
+        assertEquals(1500, read.getSenderTimestamp());
+        assertEquals(2000, read.getTimestamp());
+        assertEquals(Message.TYPE_TEXT, read.getType());
+        read = log.read(1);
+        assertEquals(7, read.getType());
+        assertArrayEquals(new byte[] {1, 2, 3}, read.getPayload());
+        log.close();
+    }
+
+    @Test
+    public void readsVersion1Records() throws Exception {
+        File dir = folder.newFolder("peer");
+        byte[] content = "old".getBytes(StandardCharsets.UTF_8);
+        // [int body length][byte flags: sent, STATUS_DELIVERED][long timestamp][content]
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 8 + content.length);
+        record.putInt(1 + 8 + content.length).put((byte) (1 | Message.STATUS_DELIVERED << 1)).putLong(1234).put(content);
+        try (FileOutputStream out = new FileOutputStream(segmentFile(dir, ".log"))) {
+            out.write(record.array());
+        }
+
+        MessageLog log = new MessageLog(dir);
+        Message read = log.read(0);
+        assertEquals("old", read.getContent());
+        assertTrue(read.isSent());
+        assertEquals(Message.STATUS_DELIVERED, read.getStatus());
+        assertEquals(1234, read.getSenderTimestamp());
+        assertEquals(0, read.getId());
+        log.setStatus(0, Message.STATUS_FAILED);
+        assertEquals("old", log.read(0).getContent());
+        assertEquals(Message.STATUS_FAILED, log.read(0).getStatus());
+        log.close();
+    }
+
+    private static File segmentFile(File dir, String suffix) {
+        return new File(dir, String.format("%020d", 0) + suffix);
+    }
+}
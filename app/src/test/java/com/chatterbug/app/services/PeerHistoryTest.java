@@ -0,0 +1,106 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.chatterbug.app.models.Message;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dropping of messages a peer sends twice, and the search index kept next to the log.
+ */
+public class PeerHistoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dropsAResentMessage() throws Exception {
+        PeerHistory history = PeerHistory.open(folder.getRoot(), "00:11");
+        assertEquals(0, history.appendReceived(received(7, "hi")));
+        assertEquals(PeerHistory.DUPLICATE, history.appendReceived(received(7, "hi")));
+        assertEquals(1, history.appendReceived(received(8, "there")));
+        assertEquals(2, history.size());
+        history.close();
+    }
+
+    @Test
+    public void remembersIdsAcrossReopening() throws Exception {
+        File root = folder.getRoot();
+        PeerHistory history = PeerHistory.open(root, "00:11");
+        history.appendReceived(received(7, "hi"));
+        history.close();
+
+        history = PeerHistory.open(root, "00:11");
+        assertEquals(PeerHistory.DUPLICATE, history.appendReceived(received(7, "hi")));
+        history.close();
+    }
+
+    @Test
+    public void keepsMessagesWithoutIds() throws Exception {
+        PeerHistory history = PeerHistory.open(folder.getRoot(), "00:11");
+        assertEquals(0, history.appendReceived(received(0, "hi")));
+        assertEquals(1, history.appendReceived(received(0, "hi")));
+        history.close();
+    }
+
+    @Test
+    public void loadsTheSearchIndexOnlyForSearching() throws Exception {
+        File root = folder.getRoot();
+        PeerHistory history = PeerHistory.open(root, "00:11");
+        history.append(received(1, "apple"));
+        assertArrayEquals(new int[] {0}, history.search("apple", 10));
+        history.append(received(2, "banana"));
+        history.close();
+        File indexFile = new File(root, "00_11/search.terms");
+        byte[] saved = Files.readAllBytes(indexFile.toPath());
+
+        history = PeerHistory.open(root, "00:11");
+        history.append(received(3, "cherry"));
+        // Never loaded, so closing must not replace the saved index with an empty one
+        history.close();
+        assertArrayEquals(saved, Files.readAllBytes(indexFile.toPath()));
+
+        history = PeerHistory.open(root, "00:11");
+        assertArrayEquals(new int[] {2}, history.search("cherry", 10));
+        assertArrayEquals(new int[] {1}, history.search("banana", 10));
+        history.close();
+    }
+
+    @Test
+    public void savesTheSearchIndexWhileOpen() throws Exception {
+        File root = folder.getRoot();
+        List<Runnable> saves = new ArrayList<>();
+        PeerHistory history = PeerHistory.open(root, "00:11", saves::add);
+        history.prepareSearch();
+        for (int i = 0; i < 300; i++) {
+            history.append(received(i + 1, "message" + i));
+        }
+        // One save queued however many messages went past the threshold
+        assertEquals(1, saves.size());
+        File indexFile = new File(root, "00_11/search.terms");
+        assertFalse(indexFile.exists());
+        saves.get(0).run();
+        assertTrue(indexFile.exists());
+        history.close();
+
+        history = PeerHistory.open(root, "00:11");
+        assertArrayEquals(new int[] {150}, history.search("message150", 10));
+        history.close();
+    }
+
+    private static Message received(long id, String text) {
+        Message message = new Message(text, false, 1000);
+        message.setId(id);
+        return message;
+    }
+}
@@ -0,0 +1,89 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+/**
+ * Scoring, the minimum score for a guess, eviction and saving of recent chat partners.
+ */
+public class RecentPeersTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void guessesNothingWithoutHistory() throws Exception {
+        RecentPeers peers = new RecentPeers(new File(folder.getRoot(), "recent_peers"));
+        peers.load();
+        assertNull(peers.getMostLikely(0));
+    }
+
+    @Test
+    public void doesNotGuessFromASingleChat() {
+        RecentPeers peers = new RecentPeers(new File(folder.getRoot(), "recent_peers"));
+        peers.record("00:11", 0);
+        assertNull(peers.getMostLikely(0));
+        peers.record("00:11", DAY_MS);
+        assertEquals("00:11", peers.getMostLikely(DAY_MS));
+    }
+
+    @Test
+    public void forgetsAPartnerNotChattedWithForAWhile() {
+        RecentPeers peers = new RecentPeers(new File(folder.getRoot(), "recent_peers"));
+        for (int i = 0; i < 3; i++) {
+            peers.record("00:11", 0);
+        }
+        assertEquals("00:11", peers.getMostLikely(0));
+        assertNull(peers.getMostLikely(2 * RecentPeers.HALF_LIFE_MS));
+    }
+
+    @Test
+    public void prefersTheRegularPartner() {
+        RecentPeers peers = new RecentPeers(new File(folder.getRoot(), "recent_peers"));
+        for (int i = 0; i < 5; i++) {
+            peers.record("00:11", i * DAY_MS);
+        }
+        peers.record("00:22", 4 * DAY_MS);
+        peers.record("00:22", 4 * DAY_MS);
+        assertEquals("00:11", peers.getMostLikely(4 * DAY_MS));
+    }
+
+    @Test
+    public void evictsTheLeastLikelyPeer() {
+        RecentPeers peers = new RecentPeers(new File(folder.getRoot(), "recent_peers"));
+        peers.record("old", 0);
+        for (int i = 1; i < RecentPeers.MAX_PEERS; i++) {
+            peers.record("peer" + i, DAY_MS);
+            peers.record("peer" + i, DAY_MS);
+        }
+        peers.record("new", DAY_MS);
+        peers.record("new", DAY_MS);
+        peers.record("new", DAY_MS);
+        assertEquals("new", peers.getMostLikely(DAY_MS));
+
+        // Back with a fresh count of two; had it been kept it would now tie "new" and win
+        peers.record("old", DAY_MS);
+        peers.record("old", DAY_MS);
+        assertEquals("new", peers.getMostLikely(DAY_MS));
+    }
+
+    @Test
+    public void reloadsWhatWasSaved() throws Exception {
+        File file = new File(folder.getRoot(), "recent_peers");
+        RecentPeers peers = new RecentPeers(file);
+        peers.record("00:11", 0);
+        peers.record("00:11", 0);
+        peers.save();
+
+        RecentPeers reloaded = new RecentPeers(file);
+        reloaded.load();
+        assertEquals("00:11", reloaded.getMostLikely(0));
+    }
+}
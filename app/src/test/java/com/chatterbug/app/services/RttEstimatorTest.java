@@ -0,0 +1,48 @@
+package com.chatterbug.app.services;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Retransmission timeout from RTT samples and its backoff.
+ */
+public class RttEstimatorTest {
+    @Test
+    public void startsAtTheInitialTimeout() {
+        assertEquals(RttEstimator.INITIAL_RTO_MS, new RttEstimator().getRetransmitTimeout());
+    }
+
+    @Test
+    public void followsSamples() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.addSample(400);
+        // SRTT 400, RTTVAR 200
+        assertEquals(1200, rtt.getRetransmitTimeout());
+    }
+
+    @Test
+    public void doublesOnEachTimeoutUpToTheMaximum() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.addSample(400);
+        rtt.backOff();
+        assertEquals(2400, rtt.getRetransmitTimeout());
+        rtt.backOff();
+        assertEquals(4800, rtt.getRetransmitTimeout());
+        for (int i = 0; i < 10; i++) {
+            rtt.backOff();
+        }
+        assertEquals(RttEstimator.MAX_RTO_MS, rtt.getRetransmitTimeout());
+    }
+
+    @Test
+    public void nextSampleResetsTheBackoff() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.addSample(400);
+        rtt.backOff();
+        rtt.backOff();
+        rtt.addSample(400);
+        // SRTT 400, RTTVAR 150
+        assertEquals(1000, rtt.getRetransmitTimeout());
+    }
+}
@@ -0,0 +1,44 @@
+package com.chatterbug.benchmarks;
+
+import com.chatterbug.app.services.FrameCipher;
+import com.chatterbug.app.services.FrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.security.KeyPair;
+
+/**
+ * Per-frame cost of an encrypted link: one side seals a payload in place, the other opens it
+ * in place. Sizes are a chat message and a file chunk.
+ */
+@State(Scope.Thread)
+public class FrameCipherBenchmark {
+    @Param({"256", "4096"})
+    public int payloadLength;
+
+    private FrameCipher sender;
+    private FrameCipher receiver;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        KeyPair a = FrameCipher.generateKeyPair();
+        KeyPair b = FrameCipher.generateKeyPair();
+        sender = FrameCipher.agree(a, b.getPublic().getEncoded());
+        receiver = FrameCipher.agree(b, a.getPublic().getEncoded());
+        buffer = new byte[payloadLength + FrameCipher.TAG_BYTES];
+        byte[] text = Payloads.text(payloadLength).getBytes();
+        System.arraycopy(text, 0, buffer, 0, Math.min(text.length, payloadLength));
+    }
+
+    @Benchmark
+    public int sealAndOpen() throws IOException {
+        int sealed = sender.seal(FrameCodec.TYPE_MESSAGE, buffer, 0, payloadLength);
+        return receiver.open(FrameCodec.TYPE_MESSAGE, buffer, 0, sealed);
+    }
+}
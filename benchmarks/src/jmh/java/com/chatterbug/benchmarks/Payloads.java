@@ -0,0 +1,16 @@
+package com.chatterbug.benchmarks;
+
+final class Payloads {
+    private static final String SAMPLE = "hey, are you still coming over later? ";
+
+    private Payloads() {
+    }
+
+    static String text(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(SAMPLE);
+        }
+        return builder.substring(0, length);
+    }
+}
@@ -0,0 +1,67 @@
+package com.chatterbug.benchmarks;
+
+import com.chatterbug.app.models.Message;
+import com.chatterbug.app.services.BufferPool;
+import com.chatterbug.app.services.FrameCodec;
+import com.chatterbug.app.services.MessageCodec;
+import com.chatterbug.app.services.ReceivedMessageDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Bytes off the socket into Message objects, one operation per message. The stream is fed in
+ * 4 KB reads, matching the connection reader in BluetoothChatService, and each frame goes
+ * through the same BufferPool copy and ReceivedMessageDecoder as in the app.
+ */
+@State(Scope.Thread)
+public class ReceivePathBenchmark {
+    private static final int MESSAGES = 1000;
+    private static final int READ_SIZE = 4096;
+    private static final String PEER = "00:11:22:33:44:55";
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private byte[] stream;
+    private FrameCodec.Decoder decoder;
+    private ReceivedMessageDecoder messageDecoder;
+    private BufferPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+        byte[] payload = MessageCodec.encode(new Message(Payloads.text(messageLength), true, 0));
+        for (int i = 0; i < MESSAGES; i++) {
+            encoder.write(out, FrameCodec.TYPE_MESSAGE, payload, 0, payload.length);
+        }
+        stream = out.toByteArray();
+        decoder = new FrameCodec.Decoder();
+        messageDecoder = new ReceivedMessageDecoder();
+        pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_MAX_POOLED);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decodeFrames(final Blackhole blackhole) throws IOException {
+        FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+                blackhole.consume(messageDecoder.decode(PEER, pool.copyOf(buffer, offset, length)));
+            }
+        };
+        for (int pos = 0; pos < stream.length; pos += READ_SIZE) {
+            decoder.feed(stream, pos, Math.min(READ_SIZE, stream.length - pos), listener);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.chatterbug.benchmarks;
+
+import com.chatterbug.app.models.Message;
+import com.chatterbug.app.services.FrameCodec;
+import com.chatterbug.app.services.MessageCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Outbound path of ChatActivity.sendMessage: message to its binary encoding, then framed onto
+ * the stream.
+ */
+@State(Scope.Thread)
+public class SendPathBenchmark {
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private String text;
+    private final FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        text = Payloads.text(messageLength);
+    }
+
+    @Benchmark
+    public int encodeMessage() throws IOException {
+        out.reset();
+        Message message = new Message(text, true, System.currentTimeMillis());
+        byte[] payload = MessageCodec.encode(message);
+        encoder.write(out, FrameCodec.TYPE_MESSAGE, payload, 0, payload.length);
+        return out.size();
+    }
+}
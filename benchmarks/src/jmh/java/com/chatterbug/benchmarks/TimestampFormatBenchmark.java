@@ -0,0 +1,22 @@
+package com.chatterbug.benchmarks;
+
+import com.chatterbug.app.adapters.TimeLabelFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Time label produced for every bound row in MessageAdapter, through the formatter it uses.
+ */
+@State(Scope.Thread)
+public class TimestampFormatBenchmark {
+    private final TimeLabelFormatter timeFormat = new TimeLabelFormatter();
+    private long timestamp = System.currentTimeMillis();
+
+    @Benchmark
+    public String formatTime() {
+        timestamp += 1000;
+        return timeFormat.format(timestamp);
+    }
+}